@@ -0,0 +1,115 @@
+/*******************************************************************************
+ * Copyright (c) 2013 Chris Banes.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ ******************************************************************************/
+package uk.co.senab.bitmapcache;
+
+import java.lang.ref.ReferenceQueue;
+import java.lang.ref.WeakReference;
+import java.util.concurrent.ConcurrentHashMap;
+
+/**
+ * Weakly holds every {@link CacheableBitmapDrawable} which is currently being displayed, keyed by
+ * it's {@link MemoryKey}. This means that a displayed drawable can still be found after it has
+ * been evicted from the memory cache, rather than a duplicate being decoded from disk.
+ *
+ * <p> Drawables add and remove themselves via {@link CacheableBitmapDrawable#setBeingUsed(boolean)}.
+ * </p>
+ */
+final class ActiveResources {
+
+    private final ConcurrentHashMap<MemoryKey, ResourceRef> mResources;
+
+    private final ReferenceQueue<CacheableBitmapDrawable> mRefQueue;
+
+    // May be null if the memory cache is not enabled
+    private final BitmapMemoryLruCache mMemoryCache;
+
+    ActiveResources(BitmapMemoryLruCache memoryCache) {
+        mResources = new ConcurrentHashMap<MemoryKey, ResourceRef>();
+        mRefQueue = new ReferenceQueue<CacheableBitmapDrawable>();
+        mMemoryCache = memoryCache;
+    }
+
+    /**
+     * Returns the displayed drawable for {@code key}, if there is one. This method is safe to be
+     * called from the main thread.
+     */
+    CacheableBitmapDrawable get(MemoryKey key) {
+        purgeClearedReferences();
+
+        final ResourceRef ref = mResources.get(key);
+        if (null != ref) {
+            final CacheableBitmapDrawable value = ref.get();
+            if (null != value && value.isBitmapValid() && value.isBeingDisplayed()) {
+                return value;
+            }
+            mResources.remove(key, ref);
+        }
+        return null;
+    }
+
+    /**
+     * Called when {@code value} has started being displayed.
+     */
+    void activate(CacheableBitmapDrawable value) {
+        purgeClearedReferences();
+        mResources.put(value.getMemoryKey(), new ResourceRef(value, mRefQueue));
+    }
+
+    /**
+     * Called when {@code value} is no longer being displayed. If it is no longer being cached
+     * either, its Bitmap is offered back to the reuse pool.
+     */
+    void deactivate(CacheableBitmapDrawable value) {
+        final ResourceRef ref = mResources.get(value.getMemoryKey());
+        if (null != ref && ref.get() == value) {
+            mResources.remove(value.getMemoryKey(), ref);
+        }
+
+        if (null != mMemoryCache) {
+            mMemoryCache.onEntryReleased(value);
+        }
+    }
+
+    /**
+     * Forgets every displayed drawable for {@code url}, so that it is no longer returned by
+     * {@link #get(MemoryKey)}. The drawables themselves are left alone, as they may still be on
+     * screen.
+     */
+    void removeAll(String url) {
+        for (MemoryKey key : mResources.keySet()) {
+            if (key.mUrl.equals(url)) {
+                mResources.remove(key);
+            }
+        }
+    }
+
+    private void purgeClearedReferences() {
+        ResourceRef ref;
+        while (null != (ref = (ResourceRef) mRefQueue.poll())) {
+            mResources.remove(ref.mKey, ref);
+        }
+    }
+
+    static final class ResourceRef extends WeakReference<CacheableBitmapDrawable> {
+        final MemoryKey mKey;
+
+        ResourceRef(CacheableBitmapDrawable value, ReferenceQueue<CacheableBitmapDrawable> queue) {
+            super(value, queue);
+            mKey = value.getMemoryKey();
+        }
+    }
+
+}
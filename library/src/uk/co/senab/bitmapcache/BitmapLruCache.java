@@ -25,19 +25,19 @@ import android.graphics.BitmapFactory;
 import android.os.AsyncTask;
 import android.os.Build;
 import android.os.Looper;
-import android.os.Process;
+import android.os.SystemClock;
 import android.util.Log;
 
+import java.io.BufferedInputStream;
 import java.io.File;
 import java.io.FileInputStream;
-import java.io.FileNotFoundException;
 import java.io.IOException;
 import java.io.InputStream;
 import java.io.OutputStream;
-import java.util.HashMap;
-import java.util.concurrent.ScheduledFuture;
-import java.util.concurrent.ScheduledThreadPoolExecutor;
+import java.nio.ByteBuffer;
+import java.util.concurrent.CountDownLatch;
 import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
 import java.util.concurrent.locks.ReentrantLock;
 
 /**
@@ -109,10 +109,176 @@ public class BitmapLruCache {
         }
     }
 
-    // The number of seconds after the last edit that the Disk Cache should be
+    /**
+     * The eviction policy controls which entries are removed from the memory cache once it is
+     * full. To set this, use the {@link Builder#setMemoryCacheEvictionPolicy(EvictionPolicy)
+     * Builder.setMemoryCacheEvictionPolicy()} method.
+     */
+    public static enum EvictionPolicy {
+        /**
+         * The least recently used entry is evicted. This is the default.
+         */
+        LRU,
+
+        /**
+         * New entries are held in a small window. When they leave it, they are only kept if they
+         * have been used more often recently than the entry which would be evicted to make room.
+         * This stops one-off images, such as a single full screen photo, from flushing out
+         * frequently used ones such as avatars and thumbnails.
+         */
+        W_TINY_LFU
+    }
+
+    /**
+     * The decode config policy controls which {@link Bitmap.Config} images are decoded with. To
+     * set this, use the {@link Builder#setDecodeConfigPolicy(DecodeConfigPolicy)
+     * Builder.setDecodeConfigPolicy()} method.
+     */
+    public static enum DecodeConfigPolicy {
+        /**
+         * Images are always decoded with the config from the decode options, which is {@link
+         * Bitmap.Config#ARGB_8888} by default. This is the default.
+         */
+        REQUESTED,
+
+        /**
+         * Images which can not have any transparency, such as JPEGs, are decoded as {@link
+         * Bitmap.Config#RGB_565} when the decode options ask for the default {@link
+         * Bitmap.Config#ARGB_8888}. This halves the memory used by most photos, at the cost of
+         * some color banding.
+         */
+        PREFER_RGB_565_WHEN_OPAQUE;
+
+        /**
+         * @return true if this policy may change {@code requested} for opaque images.
+         */
+        boolean canReduceConfig(Bitmap.Config requested) {
+            return this == PREFER_RGB_565_WHEN_OPAQUE
+                    && (null == requested || requested == Bitmap.Config.ARGB_8888);
+        }
+    }
+
+    /**
+     * The disk cache engine controls how entries are stored on disk. To set this, use the {@link
+     * Builder#setDiskCacheEngine(DiskCacheEngine) Builder.setDiskCacheEngine()} method. Changing
+     * the engine starts a new, empty disk cache.
+     */
+    public static enum DiskCacheEngine {
+        /**
+         * Each entry is stored in it's own files by {@link DiskLruCache}, which can be sharded
+         * with {@link Builder#setDiskCacheShardCount(int)}. This is the default.
+         */
+        DISK_LRU_CACHE,
+
+        /**
+         * Entries are appended to a small number of large pack files, which are compacted in the
+         * background. This avoids the per-file overhead of {@link #DISK_LRU_CACHE}, which is
+         * larger than the data itself for small thumbnails. Each entry is held in memory while it
+         * is being written, so this is not suited to large images.
+         */
+        PACK_FILE
+    }
+
+    /**
+     * The disk cache eviction policy controls which entries are removed from the disk cache once
+     * it is full. To set this, use the {@link
+     * Builder#setDiskCacheEvictionPolicy(DiskCacheEvictionPolicy)
+     * Builder.setDiskCacheEvictionPolicy()} method. This is only used by {@link
+     * DiskCacheEngine#PACK_FILE}, as {@link DiskLruCache} always evicts in least recently used
+     * order.
+     */
+    public static enum DiskCacheEvictionPolicy {
+        /**
+         * The least recently used entry is evicted. This is the default.
+         */
+        LRU,
+
+        /**
+         * GreedyDual-Size-Frequency. Entries are weighed by how often they are used and how long
+         * they took to fetch, against how much space they take up. This stops one large image
+         * from pushing out many small ones which are used often, such as avatars. The fetch time
+         * is recorded when the image is given to {@link BitmapLruCache#put(String, InputStream)},
+         * as the time spent reading the stream up to it's end. Images given to {@code put} in any
+         * other form are treated as cheap to fetch again. <p/> This only takes effect with {@link
+         * DiskCacheEngine#PACK_FILE}.
+         */
+        GREEDY_DUAL_SIZE_FREQUENCY
+    }
+
+    /**
+     * The encode policy chooses the format and quality which a Bitmap given to {@link
+     * #put(String, Bitmap)} is compressed with for the disk cache. To set this, use the {@link
+     * Builder#setEncodePolicy(EncodePolicy) Builder.setEncodePolicy()} method. You can provide
+     * your own implementation, or use one of the provided policies.
+     */
+    public interface EncodePolicy {
+
+        /**
+         * Always compresses as PNG, which is lossless but slow, and gives large files for photos.
+         * This is the default.
+         */
+        EncodePolicy LOSSLESS = new EncodePolicy() {
+            @Override
+            public Bitmap.CompressFormat getCompressFormat(Bitmap bitmap) {
+                return Bitmap.CompressFormat.PNG;
+            }
+
+            @Override
+            public int getCompressQuality(Bitmap bitmap) {
+                return 100;
+            }
+        };
+
+        /**
+         * Compresses Bitmaps which have alpha as PNG, so that it is kept. Opaque Bitmaps, which
+         * are usually photos, are compressed as JPEG at quality {@value #AUTO_JPEG_QUALITY}, which
+         * is much quicker to both encode and decode.
+         */
+        EncodePolicy AUTO = new EncodePolicy() {
+            @Override
+            public Bitmap.CompressFormat getCompressFormat(Bitmap bitmap) {
+                return bitmap.hasAlpha() ? Bitmap.CompressFormat.PNG : Bitmap.CompressFormat.JPEG;
+            }
+
+            @Override
+            public int getCompressQuality(Bitmap bitmap) {
+                return bitmap.hasAlpha() ? 100 : AUTO_JPEG_QUALITY;
+            }
+        };
+
+        int AUTO_JPEG_QUALITY = 85;
+
+        /**
+         * @return the format which {@code bitmap} should be compressed with.
+         */
+        Bitmap.CompressFormat getCompressFormat(Bitmap bitmap);
+
+        /**
+         * @return the quality which {@code bitmap} should be compressed with, from 0 to 100.
+         */
+        int getCompressQuality(Bitmap bitmap);
+    }
+
+    // Buffer size used for decode streams. Large enough for most image headers.
+    static final int DECODE_BUFFER_SIZE = 16 * 1024;
+
+    // The largest sample size which is looked for in the memory cache, when looking for any version
+    static final int MAX_TARGET_SAMPLE_SIZE = 64;
+
+    // Configs which a memory cache key may have been created with
+    private static final Bitmap.Config[] MEMORY_KEY_CONFIGS = Bitmap.Config.values();
+
+    // The maximum number of seconds after an edit that the Disk Cache should be
     // flushed
     static final int DISK_CACHE_FLUSH_DELAY_SECS = 5;
 
+    // The Disk Cache is flushed sooner once this many edits, or bytes, have built up
+    static final int DISK_CACHE_FLUSH_MAX_WRITES = 32;
+    static final long DISK_CACHE_FLUSH_MAX_BYTES = 4 * 1024 * 1024;
+
+    // Number of locks shared by disk cache edits. Must be a power of 2.
+    static final int DISK_CACHE_EDIT_LOCK_STRIPES = 32;
+
     /**
      * @throws IllegalStateException if the calling thread is the main/UI thread.
      */
@@ -135,8 +301,6 @@ public class BitmapLruCache {
         return Md5.encode(url);
     }
 
-    private File mTempDir;
-
     private Resources mResources;
 
     /**
@@ -146,29 +310,57 @@ public class BitmapLruCache {
 
     private RecyclePolicy mRecyclePolicy;
 
+    private DecodeConfigPolicy mDecodeConfigPolicy;
+
+    private EncodePolicy mEncodePolicy;
+
+    // Drawables which are currently being displayed
+    private ActiveResources mActiveResources;
+
     /**
      * Disk Cache Variables
      */
-    private DiskLruCache mDiskCache;
+    private volatile DiskCacheStorage mDiskCache;
+
+    // Released once the disk cache has been opened, or failed to. Null if it is not enabled.
+    private volatile CountDownLatch mDiskCacheOpenLatch;
+
+    private volatile long mDiskCacheOpenTime = -1;
 
     // Variables which are only used when the Disk Cache is enabled
-    private HashMap<String, ReentrantLock> mDiskCacheEditLocks;
+    private ReentrantLock[] mDiskCacheEditLocks;
+
+    // Disk cache reads and decodes which are currently running
+    private final InFlightLoads<String, CacheableBitmapDrawable> mDiskCacheLoads
+            = new InFlightLoads<String, CacheableBitmapDrawable>();
+
+    // Number of times an edit had to wait for another edit sharing it's lock
+    private final AtomicInteger mDiskCacheEditLockContentionCount = new AtomicInteger();
 
-    private ScheduledThreadPoolExecutor mDiskCacheFlusherExecutor;
+    // Entries with decoded pixels up to this many bytes are stored uncompressed. 0 disables this.
+    private int mDiskCacheRawPixelThreshold;
 
-    private DiskCacheFlushRunnable mDiskCacheFlusherRunnable;
+    // Disk writes which are performed in the background
+    private DiskWriteQueue mDiskWriteQueue;
 
-    // Transient
-    private ScheduledFuture<?> mDiskCacheFuture;
+    private boolean mDiskCacheWriteBehind;
+
+    private int mDiskCacheMaxPendingWrites = Builder.DEFAULT_DISK_CACHE_MAX_PENDING_WRITES;
+
+    private DiskCacheFlusher mDiskCacheFlusher;
 
     BitmapLruCache(Context context) {
         if (null != context) {
             // Make sure we have the application context
             context = context.getApplicationContext();
 
-            mTempDir = context.getCacheDir();
             mResources = context.getResources();
         }
+
+        mRecyclePolicy = Builder.DEFAULT_RECYCLE_POLICY;
+        mDecodeConfigPolicy = Builder.DEFAULT_DECODE_CONFIG_POLICY;
+        mEncodePolicy = Builder.DEFAULT_ENCODE_POLICY;
+        mActiveResources = new ActiveResources(null);
     }
 
     /**
@@ -192,11 +384,14 @@ public class BitmapLruCache {
      *         false} otherwise.
      */
     public boolean containsInDiskCache(String url) {
-        if (null != mDiskCache) {
-            checkNotOnMainThread();
-
+        if (awaitDiskCacheForRequest()) {
             try {
-                return null != mDiskCache.get(transformUrlForDiskCacheKey(url));
+                final DiskCacheStorage.Snapshot snapshot = mDiskCache.get(
+                        transformUrlForDiskCacheKey(url));
+                if (null != snapshot) {
+                    snapshot.close();
+                    return true;
+                }
             } catch (IOException e) {
                 e.printStackTrace();
             }
@@ -207,14 +402,14 @@ public class BitmapLruCache {
 
     /**
      * Returns whether the Memory Cache contains the specified URL. This method is safe to be called
-     * from the main thread.
+     * from the main thread. Any version of the URL counts, whatever it was decoded with.
      *
      * @param url the URL to search for.
      * @return {@code true} if the Memory Cache is enabled and contains the specified URL, {@code
      *         false} otherwise.
      */
     public boolean containsInMemoryCache(String url) {
-        return null != mMemoryCache && null != mMemoryCache.get(url);
+        return null != findLargestInMemoryCache(url);
     }
 
     /**
@@ -229,16 +424,25 @@ public class BitmapLruCache {
 
     /**
      * Returns the value for {@code url}. This will check all caches currently enabled. <p/> If you
-     * have the disk cache enabled, you should not call this method from main/UI thread.
+     * have the disk cache enabled, you should not call this method from main/UI thread. <p/> If
+     * the memory cache does not contain {@code url} decoded with {@code decodeOpts}, but does
+     * contain a larger version of it, the result is downsampled from that rather than being
+     * decoded from disk.
      *
      * @param url        - String representing the URL of the image
      * @param decodeOpts - Options used for decoding the contents from the disk cache only.
      */
     public CacheableBitmapDrawable get(String url, BitmapFactory.Options decodeOpts) {
         CacheableBitmapDrawable result;
+        final MemoryKey key = MemoryKey.forOptions(url, decodeOpts);
 
         // First try Memory Cache
-        result = getFromMemoryCache(url);
+        result = getFromMemoryCache(key);
+
+        if (null == result) {
+            // Next try to downsample a larger version from the Memory Cache
+            result = getDownsampledFromMemoryCache(key);
+        }
 
         if (null == result) {
             // Memory Cache failed, so try Disk Cache
@@ -248,11 +452,39 @@ public class BitmapLruCache {
         return result;
     }
 
+    /**
+     * Returns the value for {@code url}, which is at least {@code reqWidth} x {@code reqHeight}.
+     * This will check all caches currently enabled. <p/> If the value needs to be decoded from the
+     * disk cache, it is decoded with the largest power-of-two sample size which still results in a
+     * Bitmap of at least the requested size. <p/> If you have the disk cache enabled, you should
+     * not call this method from main/UI thread.
+     *
+     * @param url       - String representing the URL of the image
+     * @param reqWidth  - Width which the result should be at least.
+     * @param reqHeight - Height which the result should be at least.
+     */
+    public CacheableBitmapDrawable get(String url, int reqWidth, int reqHeight) {
+        CacheableBitmapDrawable result;
+
+        // First try Memory Cache
+        result = getFromMemoryCache(url, reqWidth, reqHeight);
+
+        if (null == result) {
+            // Memory Cache failed, so try Disk Cache
+            result = getFromDiskCache(url, null, reqWidth, reqHeight);
+        }
+
+        return result;
+    }
+
     /**
      * Returns the value for {@code url} in the disk cache only. You should not call this method
      * from main/UI thread. <p/> If enabled, the result of this method will be cached in the memory
-     * cache. <p /> Unless you have a specific requirement to only query the disk cache, you should
-     * call {@link #get(String)} instead.
+     * cache. <p /> If another thread is already reading {@code url} with the same options, this
+     * waits for it and returns the same drawable, in which case {@code decodeOpts} is not used.
+     * If the calling thread is interrupted while waiting, {@code null} is returned. <p /> Unless
+     * you have a specific requirement to only query the disk cache, you should call {@link
+     * #get(String)} instead.
      *
      * @param url        - String representing the URL of the image
      * @param decodeOpts - Options used for decoding the contents from the disk cache.
@@ -261,25 +493,81 @@ public class BitmapLruCache {
      */
     public CacheableBitmapDrawable getFromDiskCache(final String url,
             final BitmapFactory.Options decodeOpts) {
+        return getFromDiskCache(url, decodeOpts, 0, 0);
+    }
+
+    /**
+     * Returns the value for {@code url} in the disk cache only, decoded so that it is at least
+     * {@code reqWidth} x {@code reqHeight}. You should not call this method from main/UI thread.
+     * <p/> If enabled, the result of this method will be cached in the memory cache.
+     *
+     * @param url       - String representing the URL of the image
+     * @param reqWidth  - Width which the result should be at least.
+     * @param reqHeight - Height which the result should be at least.
+     * @return Value for {@code url} from disk cache, or {@code null} if the disk cache is not
+     *         enabled.
+     * @see #get(String, int, int)
+     */
+    public CacheableBitmapDrawable getFromDiskCache(final String url, final int reqWidth,
+            final int reqHeight) {
+        return getFromDiskCache(url, null, reqWidth, reqHeight);
+    }
+
+    private CacheableBitmapDrawable getFromDiskCache(final String url,
+            final BitmapFactory.Options decodeOpts, final int reqWidth, final int reqHeight) {
+        if (!awaitDiskCacheForRequest()) {
+            return null;
+        }
+
+        // Concurrent requests for the same decode share one read, and receive the same result
+        final MemoryKey memoryKey = MemoryKey.forOptions(url, decodeOpts);
+        final String loadKey = reqWidth + "x" + reqHeight + " " + memoryKey.mSampleSize + " "
+                + memoryKey.mConfig + " " + url;
+
+        return mDiskCacheLoads.load(loadKey, new InFlightLoads.Loader<CacheableBitmapDrawable>() {
+            @Override
+            public CacheableBitmapDrawable load(
+                    InFlightLoads.Load<CacheableBitmapDrawable> load) {
+                if (!load.isWanted()) {
+                    // Every caller has been interrupted, so don't bother decoding
+                    return null;
+                }
+                return loadFromDiskCache(url, decodeOpts, reqWidth, reqHeight);
+            }
+        });
+    }
+
+    private CacheableBitmapDrawable loadFromDiskCache(final String url,
+            final BitmapFactory.Options decodeOpts, final int reqWidth, final int reqHeight) {
         CacheableBitmapDrawable result = null;
 
         if (null != mDiskCache) {
-            checkNotOnMainThread();
-
             try {
                 final String key = transformUrlForDiskCacheKey(url);
+                final SnapshotInputStreamProvider ip = new SnapshotInputStreamProvider(key);
+                final long startTime = Constants.DEBUG ? SystemClock.elapsedRealtime() : 0;
+
                 // Try and decode bitmap
-                result = decodeBitmap(new SnapshotInputStreamProvider(key), url, decodeOpts);
+                result = decodeBitmap(ip, url, decodeOpts, reqWidth, reqHeight);
+
+                if (Constants.DEBUG) {
+                    Log.d(Constants.LOG_TAG, "Disk cache read and decode took "
+                            + (SystemClock.elapsedRealtime() - startTime) + "ms: " + url);
+                }
 
                 if (null != result) {
                     if (null != mMemoryCache) {
                         mMemoryCache.put(result);
                     }
+                    if (ip.needsMetadataWrite()) {
+                        // Entry had no record, so store what was parsed for next time
+                        writeDiskMetadata(ip);
+                    }
                 } else {
                     // If we get here, the file in the cache can't be
                     // decoded. Remove it and schedule a flush.
                     mDiskCache.remove(key);
-                    scheduleDiskCacheFlush();
+                    scheduleDiskCacheFlush(0);
                 }
             } catch (IOException e) {
                 e.printStackTrace();
@@ -292,37 +580,135 @@ public class BitmapLruCache {
     /**
      * Returns the value for {@code url} in the memory cache only. This method is safe to be called
      * from the main thread. <p /> You should check the result of this method before starting a
-     * threaded call.
+     * threaded call. <p /> As well as the memory cache, this also checks for a drawable with the
+     * same URL which is still being displayed, even if it has since been evicted. <p /> If the
+     * full size version has not been cached, the largest version which has is returned, such as
+     * one decoded with a sample size or a different config.
      *
      * @param url - String representing the URL of the image
      * @return Value for {@code url} from memory cache, or {@code null} if the disk cache is not
      *         enabled.
      */
     public CacheableBitmapDrawable getFromMemoryCache(final String url) {
-        CacheableBitmapDrawable result = null;
+        final MemoryKey key = findLargestInMemoryCache(url);
+        if (null != key) {
+            // Now do a proper lookup, so that the access is recorded
+            return getFromMemoryCache(key);
+        }
 
         if (null != mMemoryCache) {
-            synchronized (mMemoryCache) {
-                result = mMemoryCache.get(url);
-
-                // If we get a value, but it has a invalid bitmap, remove it
-                if (null != result && !result.isBitmapValid()) {
-                    mMemoryCache.remove(url);
-                    result = null;
-                }
-            }
+            mMemoryCache.recordMiss();
         }
+        return null;
+    }
 
-        return result;
+    /**
+     * Returns the value for {@code url}, decoded with {@code decodeOpts}, in the memory cache only.
+     * This method is safe to be called from the main thread. Only the sample size and preferred
+     * config of {@code decodeOpts} are taken into account.
+     *
+     * @param url        - String representing the URL of the image
+     * @param decodeOpts - Options which the value was decoded with.
+     * @return Value for {@code url} from memory cache, or {@code null} if the disk cache is not
+     *         enabled.
+     * @see #getFromMemoryCache(String)
+     */
+    public CacheableBitmapDrawable getFromMemoryCache(final String url,
+            final BitmapFactory.Options decodeOpts) {
+        return getFromMemoryCache(MemoryKey.forOptions(url, decodeOpts));
+    }
+
+    /**
+     * @return the number of lookups which were found in the memory cache, or 0 if the memory cache
+     *         is not enabled.
+     */
+    public int getMemoryCacheHitCount() {
+        return null != mMemoryCache ? mMemoryCache.hitCount() : 0;
+    }
+
+    /**
+     * @return the number of lookups which were not found in the memory cache, or 0 if the memory
+     *         cache is not enabled.
+     */
+    public int getMemoryCacheMissCount() {
+        return null != mMemoryCache ? mMemoryCache.missCount() : 0;
+    }
+
+    /**
+     * Returns the number of decodes which were able to re-use a previously evicted Bitmap via
+     * {@code inBitmap}. This will always be 0 if the {@link RecyclePolicy} does not allow inBitmap.
+     *
+     * @return the number of reuse pool hits.
+     */
+    public int getReusePoolHitCount() {
+        final BitmapReusePool pool = null != mMemoryCache ? mMemoryCache.getReusePool() : null;
+        return null != pool ? pool.hitCount() : 0;
+    }
+
+    /**
+     * Returns the number of decodes which looked for a Bitmap to re-use via {@code inBitmap}, but
+     * could not find one of a matching size and config.
+     *
+     * @return the number of reuse pool misses.
+     */
+    public int getReusePoolMissCount() {
+        final BitmapReusePool pool = null != mMemoryCache ? mMemoryCache.getReusePool() : null;
+        return null != pool ? pool.missCount() : 0;
     }
 
     /**
-     * @return true if the Disk Cache is enabled.
+     * Returns the number of bytes currently used by the memory cache, including any evicted Bitmaps
+     * which are being kept for re-use. This will never be more than the size set with {@link
+     * Builder#setMemoryCacheMaxSize(int)}.
+     *
+     * @return the number of bytes used, or 0 if the memory cache is not enabled.
+     */
+    public int getMemoryCacheSize() {
+        return null != mMemoryCache ? mMemoryCache.totalSize() : 0;
+    }
+
+    /**
+     * @return true if the Disk Cache is enabled, and has been opened.
+     * @see #awaitDiskCache(long, TimeUnit)
      */
     public boolean isDiskCacheEnabled() {
         return null != mDiskCache;
     }
 
+    /**
+     * Waits for the disk cache to be opened, which happens in the background after {@link
+     * Builder#build()}. Until then, calls which need the disk cache wait for it, rather than
+     * missing it. This method lets you wait up front instead, such as before loading the first
+     * screen. <p/> You should not call this method from main/UI thread.
+     *
+     * @param timeout - Maximum time to wait.
+     * @param unit    - Unit of {@code timeout}.
+     * @return true if the disk cache is enabled and has been opened, false if it is not enabled,
+     *         failed to open, or the timeout elapsed first.
+     */
+    public boolean awaitDiskCache(long timeout, TimeUnit unit) {
+        final CountDownLatch latch = mDiskCacheOpenLatch;
+        if (null == latch) {
+            return false;
+        }
+
+        checkNotOnMainThread();
+        try {
+            latch.await(timeout, unit);
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        }
+        return null != mDiskCache;
+    }
+
+    /**
+     * @return the number of milliseconds which opening the disk cache took, including loading
+     *         it's journal, or -1 if it has not been opened.
+     */
+    public long getDiskCacheOpenTime() {
+        return mDiskCacheOpenTime;
+    }
+
     /**
      * @return true if the Memory Cache is enabled.
      */
@@ -332,21 +718,23 @@ public class BitmapLruCache {
 
     /**
      * Caches {@code bitmap} for {@code url} into all enabled caches. If the disk cache is enabled,
-     * the bitmap will be compressed losslessly. <p/> If you have the disk cache enabled, you should
-     * not call this method from main/UI thread.
+     * the bitmap will be compressed in the background with the format and quality chosen by the
+     * {@link EncodePolicy}, which is lossless by default. <p/> This method is safe to be called
+     * from the main thread.
      *
      * @param url    - String representing the URL of the image.
      * @param bitmap - Bitmap which has been decoded from {@code url}.
      * @return CacheableBitmapDrawable which can be used to display the bitmap.
      */
     public CacheableBitmapDrawable put(final String url, final Bitmap bitmap) {
-        return put(url, bitmap, Bitmap.CompressFormat.PNG, 100);
+        return put(url, bitmap, mEncodePolicy.getCompressFormat(bitmap),
+                mEncodePolicy.getCompressQuality(bitmap));
     }
 
     /**
      * Caches {@code bitmap} for {@code url} into all enabled caches. If the disk cache is enabled,
-     * the bitmap will be compressed with the settings you provide.
-     * <p/> If you have the disk cache enabled, you should not call this method from main/UI thread.
+     * the bitmap will be compressed in the background with the settings you provide.
+     * <p/> This method is safe to be called from the main thread.
      *
      * @param url    - String representing the URL of the image.
      * @param bitmap - Bitmap which has been decoded from {@code url}.
@@ -357,37 +745,29 @@ public class BitmapLruCache {
      * @see Bitmap#compress(Bitmap.CompressFormat, int, OutputStream)
      */
     public CacheableBitmapDrawable put(final String url, final Bitmap bitmap,
-            Bitmap.CompressFormat compressFormat, int compressQuality) {
+            final Bitmap.CompressFormat compressFormat, final int compressQuality) {
 
-        CacheableBitmapDrawable d = new CacheableBitmapDrawable(url, mResources, bitmap,
-                mRecyclePolicy, CacheableBitmapDrawable.SOURCE_UNKNOWN);
+        final CacheableBitmapDrawable d = new CacheableBitmapDrawable(MemoryKey.forUrl(url),
+                mResources, bitmap, mRecyclePolicy, CacheableBitmapDrawable.SOURCE_UNKNOWN,
+                mActiveResources);
 
         if (null != mMemoryCache) {
             mMemoryCache.put(d);
         }
 
-        if (null != mDiskCache) {
-            checkNotOnMainThread();
-
+        if (null != mDiskCacheOpenLatch) {
             final String key = transformUrlForDiskCacheKey(url);
-            final ReentrantLock lock = getLockForDiskCacheEdit(key);
-            lock.lock();
-
-            OutputStream os = null;
-
-            try {
-                DiskLruCache.Editor editor = mDiskCache.edit(key);
-                os = editor.newOutputStream(0);
-                bitmap.compress(compressFormat, compressQuality, os);
-                os.flush();
-                editor.commit();
-            } catch (IOException e) {
-                Log.e(Constants.LOG_TAG, "Error while writing to disk cache", e);
-            } finally {
-                IoUtils.closeStream(os);
-                lock.unlock();
-                scheduleDiskCacheFlush();
-            }
+            // Always written in the background, as compressing is slow
+            scheduleDiskWrite(key, d, true, new Runnable() {
+                @Override
+                public void run() {
+                    if (shouldStoreRawPixels(d)) {
+                        writeRawDiskEntry(key, bitmap, 0);
+                    } else {
+                        writeCompressedDiskEntry(key, bitmap, compressFormat, compressQuality);
+                    }
+                }
+            });
         }
 
         return d;
@@ -396,11 +776,12 @@ public class BitmapLruCache {
     /**
      * Caches resulting bitmap from {@code inputStream} for {@code url} into all enabled caches.
      * This version of the method should be preferred as it allows the original image contents to be
-     * cached, rather than a re-compressed version. <p /> The contents of the InputStream will be
-     * copied to a temporary file, then the file will be decoded into a Bitmap. Providing the decode
-     * worked: <ul> <li>If the memory cache is enabled, the decoded Bitmap will be cached to
-     * memory.</li> <li>If the disk cache is enabled, the contents of the original stream will be
-     * cached to disk.</li> </ul> <p/> You should not call this method from the main/UI thread.
+     * cached, rather than a re-compressed version. <p /> If the disk cache is enabled, the contents
+     * of the InputStream are written straight into it, and then decoded from there. Otherwise they
+     * are read into memory and decoded. Providing the decode worked: <ul> <li>If the memory cache
+     * is enabled, the decoded Bitmap will be cached to memory.</li> <li>If the disk cache is
+     * enabled, the contents of the original stream will be cached to disk.</li> </ul> <p/> You
+     * should not call this method from the main/UI thread.
      *
      * @param url         - String representing the URL of the image
      * @param inputStream - InputStream opened from {@code url}
@@ -413,12 +794,13 @@ public class BitmapLruCache {
     /**
      * Caches resulting bitmap from {@code inputStream} for {@code url} into all enabled caches.
      * This version of the method should be preferred as it allows the original image contents to be
-     * cached, rather than a re-compressed version. <p /> The contents of the InputStream will be
-     * copied to a temporary file, then the file will be decoded into a Bitmap, using the optional
-     * <code>decodeOpts</code>. Providing the decode worked: <ul> <li>If the memory cache is
-     * enabled, the decoded Bitmap will be cached to memory.</li> <li>If the disk cache is enabled,
-     * the contents of the original stream will be cached to disk.</li> </ul> <p/> You should not
-     * call this method from the main/UI thread.
+     * cached, rather than a re-compressed version. <p /> If the disk cache is enabled, the contents
+     * of the InputStream are written straight into it, and then decoded from there using the
+     * optional <code>decodeOpts</code>. Otherwise they are read into memory and decoded. Providing
+     * the decode worked: <ul> <li>If the memory cache is enabled, the decoded Bitmap will be cached
+     * to memory.</li> <li>If the disk cache is enabled, the contents of the original stream will
+     * be cached to disk.</li> </ul> <p/> You should not call this method from the main/UI
+     * thread.
      *
      * @param url         - String representing the URL of the image
      * @param inputStream - InputStream opened from {@code url}
@@ -428,81 +810,299 @@ public class BitmapLruCache {
      */
     public CacheableBitmapDrawable put(final String url, final InputStream inputStream,
             final BitmapFactory.Options decodeOpts) {
-        checkNotOnMainThread();
+        return put(url, inputStream, decodeOpts, 0, 0);
+    }
 
-        // First we need to save the stream contents to a temporary file, so it
-        // can be read multiple times
-        File tmpFile = null;
-        try {
-            tmpFile = File.createTempFile("bitmapcache_", null, mTempDir);
+    /**
+     * Caches resulting bitmap from {@code inputStream} for {@code url} into all enabled caches.
+     * This is the same as {@link #put(String, InputStream)}, except that the contents are decoded
+     * with the largest power-of-two sample size which still results in a Bitmap of at least {@code
+     * reqWidth} x {@code reqHeight}. The original contents are still cached to disk. <p/> You
+     * should not call this method from the main/UI thread.
+     *
+     * @param url         - String representing the URL of the image
+     * @param inputStream - InputStream opened from {@code url}
+     * @param reqWidth    - Width which the decoded Bitmap should be at least.
+     * @param reqHeight   - Height which the decoded Bitmap should be at least.
+     * @return CacheableBitmapDrawable which can be used to display the bitmap.
+     */
+    public CacheableBitmapDrawable put(final String url, final InputStream inputStream,
+            final int reqWidth, final int reqHeight) {
+        return put(url, inputStream, null, reqWidth, reqHeight);
+    }
 
-            // Pipe InputStream to file
-            IoUtils.copy(inputStream, tmpFile);
-        } catch (IOException e) {
-            Log.e(Constants.LOG_TAG, "Error writing to saving stream to temp file: " + url, e);
-        }
+    /**
+     * Caches resulting bitmap from the encoded image in {@code bytes} for {@code url} into all
+     * enabled caches. This is the same as {@link #put(String, InputStream)}, for when the contents
+     * are already in memory. Nothing is written to the disk cache unless the decode worked. <p/>
+     * You should not call this method from the main/UI thread.
+     *
+     * @param url   - String representing the URL of the image
+     * @param bytes - Encoded contents of {@code url}
+     * @return CacheableBitmapDrawable which can be used to display the bitmap.
+     */
+    public CacheableBitmapDrawable put(final String url, final byte[] bytes) {
+        return put(url, ByteBuffer.wrap(bytes), null, 0, 0, 0);
+    }
+
+    /**
+     * Caches resulting bitmap from the encoded image in {@code buffer} for {@code url} into all
+     * enabled caches. The remaining bytes of {@code buffer} are used, and it's position is not
+     * modified. This is the same as {@link #put(String, InputStream)}, for when the contents are
+     * already in memory. Nothing is written to the disk cache unless the decode worked. If
+     * write-behind is enabled, the disk cache is written in the background and {@code buffer}
+     * must not be modified afterwards. <p/> You should not call this method from the main/UI
+     * thread.
+     *
+     * @param url    - String representing the URL of the image
+     * @param buffer - Encoded contents of {@code url}
+     * @return CacheableBitmapDrawable which can be used to display the bitmap.
+     */
+    public CacheableBitmapDrawable put(final String url, final ByteBuffer buffer) {
+        return put(url, buffer, null, 0, 0, 0);
+    }
+
+    private CacheableBitmapDrawable put(final String url, final InputStream inputStream,
+            final BitmapFactory.Options decodeOpts, final int reqWidth, final int reqHeight) {
+        checkNotOnMainThread();
+
+        // With write-behind, the contents are decoded from memory and written later instead
+        if (!mDiskCacheWriteBehind && waitForDiskCache()) {
+            final String key = transformUrlForDiskCacheKey(url);
+            mDiskWriteQueue.cancel(key);
 
-        CacheableBitmapDrawable d = null;
+            DiskCacheStorage.Editor editor = null;
+            ImageHeaderParser.ImageInfo info = null;
+            long bytesWritten = 0, fetchTime = 0;
 
-        if (null != tmpFile) {
-            // Try and decode File
-            d = decodeBitmap(new FileInputStreamProvider(tmpFile), url, decodeOpts);
+            // The edit lock is shared with other keys and the copy may take as long as the
+            // download, so it is only held to start and finish the edit. The editor keeps other
+            // writers of this entry out in between, as edit() returns null for them.
+            ReentrantLock lock = lockDiskCacheEdit(key);
+            try {
+                editor = mDiskCache.edit(key);
+            } catch (IOException e) {
+                Log.e(Constants.LOG_TAG, "Error writing to disk cache. URL: " + url, e);
+                return null;
+            } finally {
+                lock.unlock();
+            }
 
-            if (d != null) {
-                if (null != mMemoryCache) {
-                    d.setCached(true);
-                    mMemoryCache.put(d.getUrl(), d);
+            if (null != editor) {
+                lock = null;
+                try {
+                    // Write the stream straight into the entry, reading the header on the way.
+                    // Only the reads are timed, so the fetch time doesn't include the disk write.
+                    final IoUtils.TimingInputStream timed = new IoUtils.TimingInputStream(
+                            inputStream);
+                    final InputStream is = new BufferedInputStream(timed, DECODE_BUFFER_SIZE);
+                    info = ImageHeaderParser.parse(is);
+                    bytesWritten = IoUtils.copy(is, editor.newImageOutputStream());
+                    fetchTime = timed.getReadTime();
+
+                    lock = lockDiskCacheEdit(key);
+                    editor.setMetadata(DiskCacheMetadata.encode(info, fetchTime));
+                    editor.commit();
+                } catch (IOException e) {
+                    Log.e(Constants.LOG_TAG, "Error writing to disk cache. URL: " + url, e);
+                    return null;
+                } finally {
+                    if (null == lock) {
+                        lock = lockDiskCacheEdit(key);
+                    }
+                    editor.abortUnlessCommitted();
+                    lock.unlock();
                 }
+            }
 
-                if (null != mDiskCache) {
-                    final String key = transformUrlForDiskCacheKey(url);
-                    final ReentrantLock lock = getLockForDiskCacheEdit(url);
-                    lock.lock();
+            if (null != editor) {
+                final CacheableBitmapDrawable d = decodeBitmap(
+                        new SnapshotInputStreamProvider(key, info), url, decodeOpts, reqWidth,
+                        reqHeight);
 
+                if (null != d) {
+                    if (null != mMemoryCache) {
+                        mMemoryCache.put(d);
+                    }
+                    if (shouldStoreRawPixels(d)) {
+                        // Small enough that the pixels should be stored instead
+                        writeRawDiskEntry(key, d.getBitmap(), fetchTime);
+                    }
+                } else {
+                    // The contents can't be decoded, so don't keep them
+                    Log.w(Constants.LOG_TAG, "Removing undecodable entry for: " + url);
                     try {
-                        DiskLruCache.Editor editor = mDiskCache.edit(key);
-                        IoUtils.copy(tmpFile, editor.newOutputStream(0));
-                        editor.commit();
+                        mDiskCache.remove(key);
                     } catch (IOException e) {
-                        Log.e(Constants.LOG_TAG, "Error writing to disk cache. URL: " + url, e);
-                    } finally {
-                        lock.unlock();
-                        scheduleDiskCacheFlush();
+                        Log.e(Constants.LOG_TAG, "Error removing from disk cache", e);
                     }
                 }
+
+                scheduleDiskCacheFlush(bytesWritten);
+                return d;
             }
 
-            // Finally, delete the temporary file
-            tmpFile.delete();
+            // The entry is being edited elsewhere, so just decode the contents from memory
         }
 
-        return d;
+        final long startTime = SystemClock.elapsedRealtime();
+        final ByteBuffer buffer;
+        try {
+            buffer = ByteBuffer.wrap(IoUtils.readFully(inputStream));
+        } catch (IOException e) {
+            Log.e(Constants.LOG_TAG, "Error reading stream: " + url, e);
+            return null;
+        }
+        return put(url, buffer, decodeOpts, reqWidth, reqHeight,
+                SystemClock.elapsedRealtime() - startTime);
     }
 
     /**
-     * Removes the entry for {@code url} from all enabled caches, if it exists. <p/> If you have the
-     * disk cache enabled, you should not call this method from main/UI thread.
+     * @param fetchTime - Time in milliseconds which the contents took to fetch, or 0 if unknown.
+     *                  This is stored with the disk cache entry, for use as it's eviction cost.
      */
-    public void remove(String url) {
-        if (null != mMemoryCache) {
-            mMemoryCache.remove(url);
-        }
+    private CacheableBitmapDrawable put(final String url, final ByteBuffer buffer,
+            final BitmapFactory.Options decodeOpts, final int reqWidth, final int reqHeight,
+            final long fetchTime) {
+        checkNotOnMainThread();
 
-        if (null != mDiskCache) {
-            checkNotOnMainThread();
+        final ByteBufferInputStreamProvider ip = new ByteBufferInputStreamProvider(buffer);
+        final CacheableBitmapDrawable d = decodeBitmap(ip, url, decodeOpts, reqWidth, reqHeight);
 
-            try {
-                mDiskCache.remove(transformUrlForDiskCacheKey(url));
-                scheduleDiskCacheFlush();
-            } catch (IOException e) {
-                e.printStackTrace();
+        if (null != d) {
+            if (null != mMemoryCache) {
+                mMemoryCache.put(d);
             }
+
+            // With write-behind, the write itself waits for the disk cache to open
+            if (null != mDiskCacheOpenLatch && (mDiskCacheWriteBehind || waitForDiskCache())) {
+                final String key = transformUrlForDiskCacheKey(url);
+                final ImageHeaderParser.ImageInfo info = ip.getImageInfo();
+                scheduleDiskWrite(key, d, mDiskCacheWriteBehind, new Runnable() {
+                    @Override
+                    public void run() {
+                        if (shouldStoreRawPixels(d)) {
+                            writeRawDiskEntry(key, d.getBitmap(), fetchTime);
+                        } else {
+                            writeEncodedDiskEntry(key, buffer, info, fetchTime);
+                        }
+                    }
+                });
+            }
+        }
+
+        return d;
+    }
+
+    /**
+     * Removes the entry for {@code url} from all enabled caches, if it exists. Every version of
+     * {@code url} in the memory cache is removed, whatever options it was decoded with. Drawables
+     * for {@code url} which are still being displayed are no longer returned by {@code get}. <p/>
+     * If you have the disk cache enabled, you should not call this method from main/UI thread.
+     */
+    public void remove(String url) {
+        if (null != mMemoryCache) {
+            mMemoryCache.removeAll(url);
+        }
+        mActiveResources.removeAll(url);
+
+        if (awaitDiskCacheForRequest()) {
+            try {
+                final String key = transformUrlForDiskCacheKey(url);
+                mDiskWriteQueue.cancel(key);
+                mDiskCache.remove(key);
+                scheduleDiskCacheFlush(0);
+            } catch (IOException e) {
+                e.printStackTrace();
+            }
+        }
+    }
+
+    /**
+     * Blocks until every disk cache write which was queued by a {@code put} call before this one
+     * has finished, but not for writes which are queued while it waits. Writes are queued for
+     * {@link #put(String, Bitmap)}, and for every {@code put} when write-behind is enabled with
+     * {@link Builder#setDiskCacheWriteBehindEnabled(boolean)}. <p/> You should not call this
+     * method from main/UI thread.
+     */
+    public void flushPendingWrites() {
+        if (null != mDiskWriteQueue) {
+            checkNotOnMainThread();
+            mDiskWriteQueue.flush();
         }
     }
 
+    /**
+     * Returns the number of disk cache writes which are queued or running. Once this reaches the
+     * limit set with {@link Builder#setDiskCacheMaxPendingWrites(int)}, further writes are
+     * dropped until there is room.
+     *
+     * @return the number of pending writes, or 0 if the disk cache is not enabled.
+     */
+    public int getPendingDiskWriteCount() {
+        return null != mDiskWriteQueue ? mDiskWriteQueue.getPendingCount() : 0;
+    }
+
+    /**
+     * @return the number of queued disk cache writes which were dropped, because a newer {@code
+     *         put} for the same URL replaced them before they started.
+     */
+    public int getCoalescedDiskWriteCount() {
+        return null != mDiskWriteQueue ? mDiskWriteQueue.getCoalescedCount() : 0;
+    }
+
+    /**
+     * @return the number of disk cache writes which were dropped because the maximum number of
+     *         pending writes had been reached. The images are still cached in memory.
+     */
+    public int getDroppedDiskWriteCount() {
+        return null != mDiskWriteQueue ? mDiskWriteQueue.getDroppedCount() : 0;
+    }
+
+    /**
+     * @return the number of disk cache reads which were avoided, because the same URL was already
+     *         being read and decoded with the same options for another caller.
+     */
+    public int getCoalescedDiskCacheLoadCount() {
+        return mDiskCacheLoads.getCoalescedCount();
+    }
+
+    /**
+     * @return the number of disk cache edits which had to wait for another edit to finish,
+     *         because they were for the same entry or shared it's lock.
+     */
+    public int getDiskCacheEditLockContentionCount() {
+        return mDiskCacheEditLockContentionCount.get();
+    }
+
+    /**
+     * @return the number of times the disk cache's journal has been flushed, or 0 if the disk
+     *         cache is not enabled.
+     */
+    public int getDiskCacheFlushCount() {
+        return null != mDiskCache ? mDiskCacheFlusher.getFlushCount() : 0;
+    }
+
+    /**
+     * @return the average number of disk cache edits included in each flush of it's journal, or 0
+     *         if there have been no flushes.
+     */
+    public float getDiskCacheWritesPerFlush() {
+        return null != mDiskCache ? mDiskCacheFlusher.getAverageWritesPerFlush() : 0f;
+    }
+
+    /**
+     * @return the average time in milliseconds which flushing the disk cache's journal took, or 0
+     *         if there have been no flushes.
+     */
+    public float getDiskCacheAverageFlushTime() {
+        return null != mDiskCache ? mDiskCacheFlusher.getAverageFlushTime() : 0f;
+    }
+
     /**
      * This method iterates through the memory cache (if enabled) and removes any entries which are
-     * not currently being displayed. A good place to call this would be from {@link
+     * not currently being displayed. Any Bitmaps being kept for re-use are also released. A good
+     * place to call this would be from {@link
      * android.app.Application#onLowMemory() Application.onLowMemory()}.
      */
     public void trimMemory() {
@@ -511,107 +1111,754 @@ public class BitmapLruCache {
         }
     }
 
-    synchronized void setDiskCache(DiskLruCache diskCache) {
-        mDiskCache = diskCache;
+    /**
+     * Called before the disk cache starts opening. From now on, disk cache requests wait until
+     * {@link #setDiskCache(DiskCacheStorage, long)} is called.
+     */
+    synchronized void setDiskCacheOpening() {
+        mDiskCacheEditLocks = new ReentrantLock[DISK_CACHE_EDIT_LOCK_STRIPES];
+        for (int i = 0; i < DISK_CACHE_EDIT_LOCK_STRIPES; i++) {
+            mDiskCacheEditLocks[i] = new ReentrantLock();
+        }
+        mDiskWriteQueue = new DiskWriteQueue(mDiskCacheMaxPendingWrites);
+        mDiskCacheOpenLatch = new CountDownLatch(1);
+    }
 
+    /**
+     * @param diskCache - The opened disk cache, or null if it failed to open.
+     * @param openTime  - Number of milliseconds which opening it took.
+     */
+    synchronized void setDiskCache(DiskCacheStorage diskCache, long openTime) {
         if (null != diskCache) {
-            mDiskCacheEditLocks = new HashMap<String, ReentrantLock>();
-            mDiskCacheFlusherExecutor = new ScheduledThreadPoolExecutor(1);
-            mDiskCacheFlusherRunnable = new DiskCacheFlushRunnable(diskCache);
+            mDiskCacheFlusher = new DiskCacheFlusher(diskCache, DISK_CACHE_FLUSH_MAX_WRITES,
+                    DISK_CACHE_FLUSH_MAX_BYTES, TimeUnit.SECONDS.toMillis(
+                            DISK_CACHE_FLUSH_DELAY_SECS));
+            mDiskCacheOpenTime = openTime;
         }
+
+        // Set last, so that everything else is ready when it is seen
+        mDiskCache = diskCache;
+        mDiskCacheOpenLatch.countDown();
+    }
+
+    /**
+     * Waits for the disk cache to finish opening, if it is still being opened.
+     *
+     * @return true if the disk cache is enabled and open.
+     */
+    private boolean waitForDiskCache() {
+        final CountDownLatch latch = mDiskCacheOpenLatch;
+        if (null != latch && latch.getCount() > 0) {
+            try {
+                latch.await();
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+            }
+        }
+        return null != mDiskCache;
+    }
+
+    /**
+     * Used by requests which read or modify the disk cache. If the disk cache is enabled, checks
+     * that this is not the main thread, and waits for it to finish opening.
+     *
+     * @return true if the disk cache is enabled and open.
+     */
+    private boolean awaitDiskCacheForRequest() {
+        if (null == mDiskCacheOpenLatch) {
+            return false;
+        }
+        checkNotOnMainThread();
+        return waitForDiskCache();
+    }
+
+    void setDiskCacheWriteBehind(boolean enabled, int maxPendingWrites) {
+        mDiskCacheWriteBehind = enabled;
+        mDiskCacheMaxPendingWrites = maxPendingWrites;
+    }
+
+    void setDiskCacheRawPixelThreshold(int threshold) {
+        mDiskCacheRawPixelThreshold = threshold;
+    }
+
+    void setEncodePolicy(EncodePolicy encodePolicy) {
+        mEncodePolicy = encodePolicy;
+    }
+
+    void setDecodeConfigPolicy(DecodeConfigPolicy decodeConfigPolicy) {
+        mDecodeConfigPolicy = decodeConfigPolicy;
     }
 
     void setMemoryCache(BitmapMemoryLruCache memoryCache) {
         mMemoryCache = memoryCache;
         mRecyclePolicy = memoryCache.getRecyclePolicy();
+        mActiveResources = new ActiveResources(memoryCache);
+    }
+
+    /**
+     * @return true if {@code d} should be stored in the disk cache as raw pixels, rather than
+     *         compressed. Only full size decodes are stored this way, so that a thumbnail is never
+     *         returned for a full size request.
+     */
+    private boolean shouldStoreRawPixels(CacheableBitmapDrawable d) {
+        if (mDiskCacheRawPixelThreshold <= 0 || d.getMemoryKey().mSampleSize != 1) {
+            return false;
+        }
+
+        final Bitmap bitmap = d.getBitmap();
+        return RawBitmapFormat.canWrite(bitmap)
+                && bitmap.getRowBytes() * bitmap.getHeight() <= mDiskCacheRawPixelThreshold;
+    }
+
+    /**
+     * Runs {@code write}, which writes the disk cache entry for {@code key}. If {@code async} is
+     * true, it is queued to run in the background instead. Either way, any queued write for
+     * {@code key} which has not started is dropped, as it is now out of date.
+     *
+     * @param d - Drawable whose Bitmap is used by {@code write}. It is kept from being recycled
+     *          or re-used until the write has finished.
+     */
+    private void scheduleDiskWrite(String key, final CacheableBitmapDrawable d, boolean async,
+            final Runnable write) {
+        if (!async) {
+            mDiskWriteQueue.cancel(key);
+            write.run();
+            return;
+        }
+
+        d.setCached(true);
+        mDiskWriteQueue.enqueue(key, new DiskWriteQueue.Task() {
+            @Override
+            public void run() {
+                try {
+                    // Queued writes may have been made while the disk cache was still opening
+                    if (waitForDiskCache()) {
+                        write.run();
+                    }
+                } finally {
+                    releaseFromDiskWrite(d);
+                }
+            }
+
+            @Override
+            void onDiscarded() {
+                releaseFromDiskWrite(d);
+            }
+        });
+    }
+
+    /**
+     * Drops the reference which a queued disk write held on {@code d}. If it was evicted from the
+     * memory cache in the meantime, it could not be pooled then, so it is offered now.
+     */
+    private void releaseFromDiskWrite(CacheableBitmapDrawable d) {
+        d.setCached(false);
+        if (null != mMemoryCache) {
+            mMemoryCache.onEntryReleased(d);
+        }
     }
 
-    private ReentrantLock getLockForDiskCacheEdit(String url) {
-        synchronized (mDiskCacheEditLocks) {
-            ReentrantLock lock = mDiskCacheEditLocks.get(url);
-            if (null == lock) {
-                lock = new ReentrantLock();
-                mDiskCacheEditLocks.put(url, lock);
+    /**
+     * Writes the encoded image in {@code buffer} to the disk cache entry for {@code key},
+     * replacing any existing contents.
+     */
+    private void writeEncodedDiskEntry(String key, ByteBuffer buffer,
+            ImageHeaderParser.ImageInfo info, long fetchTime) {
+        final ReentrantLock lock = lockDiskCacheEdit(key);
+
+        DiskCacheStorage.Editor editor = null;
+        try {
+            editor = mDiskCache.edit(key);
+            if (null != editor) {
+                IoUtils.write(buffer, editor.newImageOutputStream());
+                editor.setMetadata(DiskCacheMetadata.encode(info, fetchTime));
+                editor.commit();
+            }
+        } catch (IOException e) {
+            Log.e(Constants.LOG_TAG, "Error writing to disk cache", e);
+        } finally {
+            if (null != editor) {
+                editor.abortUnlessCommitted();
+            }
+            lock.unlock();
+            scheduleDiskCacheFlush(buffer.remaining());
+        }
+    }
+
+    /**
+     * Compresses {@code bitmap} into the disk cache entry for {@code key}, replacing any existing
+     * contents.
+     */
+    private void writeCompressedDiskEntry(String key, Bitmap bitmap,
+            Bitmap.CompressFormat compressFormat, int compressQuality) {
+        final ReentrantLock lock = lockDiskCacheEdit(key);
+
+        DiskCacheStorage.Editor editor = null;
+        IoUtils.CountingOutputStream os = null;
+
+        try {
+            editor = mDiskCache.edit(key);
+            if (null != editor) {
+                os = new IoUtils.CountingOutputStream(editor.newImageOutputStream());
+                bitmap.compress(compressFormat, compressQuality, os);
+                os.flush();
+                editor.setMetadata(
+                        DiskCacheMetadata.encode(getImageInfo(bitmap, compressFormat)));
+                editor.commit();
+            }
+        } catch (IOException e) {
+            Log.e(Constants.LOG_TAG, "Error while writing to disk cache", e);
+        } finally {
+            IoUtils.closeStream(os);
+            if (null != editor) {
+                editor.abortUnlessCommitted();
+            }
+            lock.unlock();
+            scheduleDiskCacheFlush(null != os ? os.getCount() : 0);
+        }
+    }
+
+    /**
+     * Writes the pixels of {@code bitmap} to the disk cache entry for {@code key}, replacing any
+     * existing contents.
+     *
+     * @param fetchTime - Time in milliseconds which the original image took to fetch, or 0 if
+     *                  unknown.
+     */
+    private void writeRawDiskEntry(String key, Bitmap bitmap, long fetchTime) {
+        final ReentrantLock lock = lockDiskCacheEdit(key);
+
+        DiskCacheStorage.Editor editor = null;
+        try {
+            editor = mDiskCache.edit(key);
+            if (null != editor) {
+                RawBitmapFormat.write(bitmap, editor.newImageOutputStream());
+                editor.setMetadata(DiskCacheMetadata.encode(
+                        new ImageHeaderParser.ImageInfo(ImageHeaderParser.ImageType.RAW,
+                                bitmap.getWidth(), bitmap.getHeight(), bitmap.hasAlpha()),
+                        fetchTime));
+                editor.commit();
+            }
+        } catch (IOException e) {
+            Log.e(Constants.LOG_TAG, "Error writing raw pixels to disk cache", e);
+        } finally {
+            if (null != editor) {
+                editor.abortUnlessCommitted();
+            }
+            lock.unlock();
+            scheduleDiskCacheFlush(RawBitmapFormat.HEADER_SIZE
+                    + (long) bitmap.getRowBytes() * bitmap.getHeight());
+        }
+    }
+
+    /**
+     * Fills in the metadata which {@code ip} parsed, for the disk cache entry it read. The storage
+     * checks that the entry is unchanged, so no edit lock is needed.
+     */
+    private void writeDiskMetadata(SnapshotInputStreamProvider ip) {
+        try {
+            ip.fillMetadata(DiskCacheMetadata.encode(ip.getImageInfo()));
+        } catch (IOException e) {
+            Log.w(Constants.LOG_TAG, "Error writing disk cache metadata", e);
+        } finally {
+            scheduleDiskCacheFlush(0);
+        }
+    }
+
+    /**
+     * @return the info for {@code bitmap} once it has been compressed with {@code format}.
+     */
+    private static ImageHeaderParser.ImageInfo getImageInfo(Bitmap bitmap,
+            Bitmap.CompressFormat format) {
+        final ImageHeaderParser.ImageType type;
+        switch (format) {
+            case JPEG:
+                type = ImageHeaderParser.ImageType.JPEG;
+                break;
+            case WEBP:
+                type = ImageHeaderParser.ImageType.WEBP;
+                break;
+            case PNG:
+            default:
+                type = ImageHeaderParser.ImageType.PNG;
+                break;
+        }
+        return new ImageHeaderParser.ImageInfo(type, bitmap.getWidth(), bitmap.getHeight(),
+                type != ImageHeaderParser.ImageType.JPEG && bitmap.hasAlpha());
+    }
+
+    /**
+     * Acquires the lock which guards edits of the disk cache entry for {@code key}. Keys share a
+     * fixed number of locks, so that the table does not grow with the number of entries. This
+     * means it must not be held across network I/O, such as reading a caller's stream.
+     *
+     * @param key - Disk cache key, from {@link #transformUrlForDiskCacheKey(String)}
+     * @return the lock, which the caller must unlock.
+     */
+    private ReentrantLock lockDiskCacheEdit(String key) {
+        // Spread the hash, as the low bits of similar keys are often the same
+        int hash = key.hashCode();
+        hash ^= (hash >>> 20) ^ (hash >>> 12);
+        hash ^= (hash >>> 7) ^ (hash >>> 4);
+
+        final ReentrantLock lock = mDiskCacheEditLocks[hash & (DISK_CACHE_EDIT_LOCK_STRIPES - 1)];
+        if (!lock.tryLock()) {
+            mDiskCacheEditLockContentionCount.incrementAndGet();
+            lock.lock();
+        }
+        return lock;
+    }
+
+    /**
+     * Records an edit of the disk cache, so that it's journal is flushed with the next batch.
+     *
+     * @param bytes - Number of bytes written by the edit, or 0 for removals.
+     */
+    private void scheduleDiskCacheFlush(long bytes) {
+        mDiskCacheFlusher.onWrite(bytes);
+    }
+
+    /**
+     * Returns the value for {@code url} in the memory cache only, which is at least {@code
+     * reqWidth} x {@code reqHeight}. This method is safe to be called from the main thread. <p />
+     * If a number of versions of {@code url} have been cached, the smallest which is large enough
+     * is returned.
+     *
+     * @param url       - String representing the URL of the image
+     * @param reqWidth  - Width which the result should be at least.
+     * @param reqHeight - Height which the result should be at least.
+     * @return Value for {@code url} from memory cache, or {@code null} if the disk cache is not
+     *         enabled.
+     * @see #get(String, int, int)
+     */
+    public CacheableBitmapDrawable getFromMemoryCache(final String url, final int reqWidth,
+            final int reqHeight) {
+        final MemoryKey fullSizeKey = MemoryKey.forUrl(url);
+
+        // Start with the largest sample size, so we find the smallest result which is big enough
+        for (int sampleSize = MAX_TARGET_SAMPLE_SIZE; sampleSize >= 1; sampleSize /= 2) {
+            final MemoryKey key = fullSizeKey.withSampleSize(sampleSize);
+            final CacheableBitmapDrawable result = peekFromMemoryCache(key);
+
+            if (null != result && result.getBitmap().getWidth() >= reqWidth
+                    && result.getBitmap().getHeight() >= reqHeight) {
+                // Now do a proper lookup, so that the access is recorded
+                return getFromMemoryCache(key);
+            }
+        }
+
+        if (null != mMemoryCache) {
+            mMemoryCache.recordMiss();
+        }
+        return null;
+    }
+
+    private CacheableBitmapDrawable getFromMemoryCache(final MemoryKey key) {
+        CacheableBitmapDrawable result = null;
+
+        if (null != mMemoryCache) {
+            result = mMemoryCache.get(key);
+
+            // If we get a value, but it has a invalid bitmap, remove it
+            if (null != result && !result.isBitmapValid()) {
+                mMemoryCache.remove(key, result);
+                result = null;
+            }
+        }
+
+        if (null == result) {
+            // Memory Cache failed, so try the drawables which are currently displayed
+            result = mActiveResources.get(key);
+        }
+
+        return result;
+    }
+
+    /**
+     * @return the key of the largest version of {@code url} in the memory cache, decoded with a
+     *         power-of-two sample size and any config, or {@code null} if there is none. The
+     *         access is not recorded.
+     */
+    private MemoryKey findLargestInMemoryCache(final String url) {
+        final MemoryKey fullSizeKey = MemoryKey.forUrl(url);
+        if (null != peekFromMemoryCache(fullSizeKey)) {
+            return fullSizeKey;
+        }
+
+        for (int sampleSize = 1; sampleSize <= MAX_TARGET_SAMPLE_SIZE; sampleSize *= 2) {
+            for (Bitmap.Config config : MEMORY_KEY_CONFIGS) {
+                final MemoryKey key = new MemoryKey(url, sampleSize, config);
+                if (!key.equals(fullSizeKey) && null != peekFromMemoryCache(key)) {
+                    return key;
+                }
+            }
+        }
+        return null;
+    }
+
+    /**
+     * Same as {@link #getFromMemoryCache(MemoryKey)}, but without recording the access. Used when
+     * searching through a number of possible keys.
+     */
+    private CacheableBitmapDrawable peekFromMemoryCache(final MemoryKey key) {
+        CacheableBitmapDrawable result = null;
+
+        if (null != mMemoryCache) {
+            result = mMemoryCache.peek(key);
+        }
+
+        if (null == result) {
+            result = mActiveResources.get(key);
+        }
+
+        return null != result && result.isBitmapValid() ? result : null;
+    }
+
+    /**
+     * Looks in the memory cache for a larger version of {@code key}, which was decoded with a
+     * smaller sample size. If one is found, it is downsampled and the result is cached.
+     */
+    private CacheableBitmapDrawable getDownsampledFromMemoryCache(final MemoryKey key) {
+        if (null == mMemoryCache || key.mSampleSize <= 1) {
+            return null;
+        }
+
+        // Start with the closest sample size, as that needs the least work to downsample
+        for (int sampleSize = key.mSampleSize - 1; sampleSize >= 1; sampleSize--) {
+            if (key.mSampleSize % sampleSize != 0) {
+                continue;
+            }
+
+            final MemoryKey largerKey = key.withSampleSize(sampleSize);
+            if (null == peekFromMemoryCache(largerKey)) {
+                continue;
+            }
+
+            final CacheableBitmapDrawable larger = getFromMemoryCache(largerKey);
+            if (null == larger) {
+                continue;
+            }
+
+            final int scale = key.mSampleSize / sampleSize;
+            final Bitmap source = larger.getBitmap();
+
+            try {
+                final Bitmap bitmap = Bitmap.createScaledBitmap(source,
+                        getDownsampledDimension(source.getWidth(), scale),
+                        getDownsampledDimension(source.getHeight(), scale), true);
+
+                CacheableBitmapDrawable d = new CacheableBitmapDrawable(key, mResources, bitmap,
+                        mRecyclePolicy, CacheableBitmapDrawable.SOURCE_DOWNSAMPLED,
+                        mActiveResources);
+                mMemoryCache.put(d);
+                return d;
+            } catch (RuntimeException e) {
+                // The larger Bitmap may have been recycled since we retrieved it
+                Log.w(Constants.LOG_TAG, "Unable to downsample: " + key, e);
+            }
+        }
+
+        return null;
+    }
+
+    /**
+     * Decodes the contents of {@code ip}.
+     *
+     * @param reqWidth  - If greater than 0 (along with {@code reqHeight}), the sample size is
+     *                  calculated so that the result is at least this wide.
+     * @param reqHeight - If greater than 0 (along with {@code reqWidth}), the sample size is
+     *                  calculated so that the result is at least this high.
+     */
+    private CacheableBitmapDrawable decodeBitmap(InputStreamProvider ip, String url,
+            BitmapFactory.Options opts, int reqWidth, int reqHeight) {
+        final boolean sizeToTarget = reqWidth > 0 && reqHeight > 0;
+
+        // Create an options instance if we haven't been provided with one
+        if (opts == null) {
+            opts = new BitmapFactory.Options();
+        }
+
+        // Created before the decode, as the decode may modify the options
+        MemoryKey key = MemoryKey.forOptions(url, opts);
+
+        Bitmap bm = null;
+        InputStream is = null;
+        int source = CacheableBitmapDrawable.SOURCE_NEW;
+        CacheableBitmapDrawable reusable = null;
+
+        try {
+            final boolean canInBitmap = null != mMemoryCache && mRecyclePolicy.canInBitmap()
+                    && (opts.inSampleSize <= 1 || sizeToTarget || canInBitmapWhenSampled());
+
+            final boolean canReduceConfig = mDecodeConfigPolicy
+                    .canReduceConfig(opts.inPreferredConfig);
+
+            // The info may already be known, such as from the disk cache metadata
+            ImageHeaderParser.ImageInfo info = ip.getImageInfo();
+
+            // Open the one InputStream which is used for both the header and the decode
+            is = openBufferedStream(ip);
+            if (null == is) {
+                return null;
+            }
+
+            if (null == info) {
+                info = ImageHeaderParser.parse(is);
+                if (null != info) {
+                    ip.onImageInfoParsed(info);
+                }
+            }
+
+            if (null != info && info.mType == ImageHeaderParser.ImageType.RAW) {
+                return decodeRawBitmap(is, key, reqWidth, reqHeight, canReduceConfig);
+            }
+
+            if (null != info) {
+                opts.outWidth = info.mWidth;
+                opts.outHeight = info.mHeight;
+                opts.outMimeType = info.getMimeType();
+            } else if (sizeToTarget || canInBitmap || canReduceConfig) {
+                // Unknown format, so let BitmapFactory read the bounds from a new stream
+                IoUtils.closeStream(is);
+                decodeBounds(ip, opts);
+                is = openBufferedStream(ip);
+                if (null == is) {
+                    return null;
+                }
+            }
+
+            final boolean opaque = null != info ? !info.mHasAlpha : isOpaque(opts.outMimeType);
+            if (canReduceConfig && opaque) {
+                // The key keeps the requested config, so that later requests still find this
+                opts.inPreferredConfig = Bitmap.Config.RGB_565;
+            }
+
+            if (sizeToTarget && opts.outWidth > 0 && opts.outHeight > 0) {
+                opts.inSampleSize = calculateInSampleSize(opts.outWidth, opts.outHeight,
+                        reqWidth, reqHeight);
+                key = key.withSampleSize(opts.inSampleSize);
+            }
+
+            if (opts.inSampleSize <= 1) {
+                opts.inSampleSize = 1;
+            }
+
+            if (canInBitmap && (opts.inSampleSize == 1 || canInBitmapWhenSampled())) {
+                reusable = addInBitmapOptions(opts);
+                if (null != reusable) {
+                    source = CacheableBitmapDrawable.SOURCE_INBITMAP;
+                }
+            }
+
+            try {
+                // Decode stream
+                bm = BitmapFactory.decodeStream(is, null, opts);
+            } catch (IllegalArgumentException e) {
+                if (source != CacheableBitmapDrawable.SOURCE_INBITMAP) {
+                    throw e;
+                }
+
+                // The Bitmap could not be re-used, so decode into a new one instead
+                Log.w(Constants.LOG_TAG, "Unable to decode using inBitmap: " + url, e);
+                IoUtils.closeStream(is);
+                SDK11.addInBitmapOption(opts, null);
+                source = CacheableBitmapDrawable.SOURCE_NEW;
+                reusable = null;
+
+                is = openBufferedStream(ip);
+                bm = BitmapFactory.decodeStream(is, null, opts);
+            }
+        } catch (Exception e) {
+            Log.e(Constants.LOG_TAG, "Unable to decode stream",  e);
+        } finally {
+            IoUtils.closeStream(is);
+        }
+
+        if (bm != null) {
+            if (null != reusable && bm == reusable.getBitmap()) {
+                // Decoded into the re-used allocation, which may be larger than the new pixels
+                return new CacheableBitmapDrawable(key, mResources, bm, mRecyclePolicy, source,
+                        mActiveResources, reusable.getMemorySize());
             }
-            return lock;
+            return new CacheableBitmapDrawable(key, mResources, bm, mRecyclePolicy, source,
+                    mActiveResources);
         }
+        return null;
     }
 
-    private void scheduleDiskCacheFlush() {
-        // If we already have a flush scheduled, cancel it
-        if (null != mDiskCacheFuture) {
-            mDiskCacheFuture.cancel(false);
+    /**
+     * Loads an entry stored in {@link RawBitmapFormat}. Raw entries are always stored at full
+     * size, so they are downsampled if the request needs a larger sample size. Otherwise the
+     * pixels are copied straight into a pooled Bitmap of the same size if there is one, otherwise
+     * into a new Bitmap. The result is keyed by the config it was actually stored with.
+     *
+     * @param key - Key for the request, before any target size was applied.
+     */
+    private CacheableBitmapDrawable decodeRawBitmap(InputStream is, MemoryKey key, int reqWidth,
+            int reqHeight, boolean canReduceConfig) throws IOException {
+        final ByteBuffer buffer = RawBitmapFormat.toBuffer(is);
+        final RawBitmapFormat.Header header = RawBitmapFormat.readHeader(buffer);
+        if (null == header) {
+            return null;
         }
 
-        // Schedule a flush
-        mDiskCacheFuture = mDiskCacheFlusherExecutor
-                .schedule(mDiskCacheFlusherRunnable, DISK_CACHE_FLUSH_DELAY_SECS,
-                        TimeUnit.SECONDS);
-    }
-
-    private CacheableBitmapDrawable decodeBitmap(InputStreamProvider ip, String url,
-            BitmapFactory.Options opts) {
-
-        Bitmap bm = null;
-        InputStream is = null;
-        int source = CacheableBitmapDrawable.SOURCE_NEW;
+        // A reduced config is keyed by the requested one, as it would be by a normal decode
+        if (header.mConfig != key.mConfig
+                && !(canReduceConfig && header.mConfig == Bitmap.Config.RGB_565)) {
+            key = new MemoryKey(key.mUrl, key.mSampleSize, header.mConfig);
+        }
+        if (reqWidth > 0 && reqHeight > 0) {
+            key = key.withSampleSize(calculateInSampleSize(header.mWidth, header.mHeight,
+                    reqWidth, reqHeight));
+        }
 
-        try {
-            if (mRecyclePolicy.canInBitmap()) {
-                // Create an options instance if we haven't been provided with one
-                if (opts == null) {
-                    opts = new BitmapFactory.Options();
-                }
+        if (key.mSampleSize > 1) {
+            final Bitmap full = Bitmap.createBitmap(header.mWidth, header.mHeight,
+                    header.mConfig);
+            if (!RawBitmapFormat.copyPixels(header, buffer, full)) {
+                full.recycle();
+                return null;
+            }
 
-                if (opts.inSampleSize <= 1) {
-                    opts.inSampleSize = 1;
+            final Bitmap bitmap = Bitmap.createScaledBitmap(full,
+                    getDownsampledDimension(header.mWidth, key.mSampleSize),
+                    getDownsampledDimension(header.mHeight, key.mSampleSize), true);
+            if (bitmap != full) {
+                full.recycle();
+            }
+            return new CacheableBitmapDrawable(key, mResources, bitmap, mRecyclePolicy,
+                    CacheableBitmapDrawable.SOURCE_DOWNSAMPLED, mActiveResources);
+        }
 
-                    if (addInBitmapOptions(ip, opts)) {
-                        source = CacheableBitmapDrawable.SOURCE_INBITMAP;
-                    }
-                }
+        if (null != mMemoryCache && mRecyclePolicy.canInBitmap()) {
+            final CacheableBitmapDrawable reusable = mMemoryCache.getExactBitmapFromRemoved(
+                    header.mWidth, header.mHeight, header.mConfig);
+            if (null != reusable
+                    && RawBitmapFormat.copyPixels(header, buffer, reusable.getBitmap())) {
+                return new CacheableBitmapDrawable(key, mResources, reusable.getBitmap(),
+                        mRecyclePolicy, CacheableBitmapDrawable.SOURCE_INBITMAP, mActiveResources,
+                        reusable.getMemorySize());
             }
+        }
 
-            // Get InputStream for actual decode
-            is = ip.getInputStream();
-            // Decode stream
-            bm = BitmapFactory.decodeStream(is, null, opts);
-        } catch (Exception e) {
-            Log.e(Constants.LOG_TAG, "Unable to decode stream",  e);
-        } finally {
-            IoUtils.closeStream(is);
+        final Bitmap bitmap = Bitmap.createBitmap(header.mWidth, header.mHeight, header.mConfig);
+        if (!RawBitmapFormat.copyPixels(header, buffer, bitmap)) {
+            bitmap.recycle();
+            return null;
         }
+        return new CacheableBitmapDrawable(key, mResources, bitmap, mRecyclePolicy,
+                CacheableBitmapDrawable.SOURCE_NEW, mActiveResources);
+    }
 
-        if (bm != null) {
-            return new CacheableBitmapDrawable(url, mResources, bm, mRecyclePolicy, source);
+    /**
+     * @return a stream from {@code ip} which supports {@link InputStream#mark(int)}, or {@code
+     *         null} if {@code ip} could not be opened.
+     */
+    private static InputStream openBufferedStream(InputStreamProvider ip) {
+        final InputStream is = ip.getInputStream();
+        if (null == is || is.markSupported()) {
+            return is;
         }
-        return null;
+        return new BufferedInputStream(is, DECODE_BUFFER_SIZE);
     }
 
-    private boolean addInBitmapOptions(InputStreamProvider ip, BitmapFactory.Options opts) {
+    /**
+     * Decodes just the bounds of {@code ip} into {@code opts.outWidth} and {@code opts.outHeight}.
+     * These are the dimensions of the original image, without any sampling applied.
+     */
+    private static void decodeBounds(InputStreamProvider ip, BitmapFactory.Options opts) {
+        final int sampleSize = opts.inSampleSize;
+
         // Create InputStream for decoding the bounds
         final InputStream is = ip.getInputStream();
         // Decode the bounds so we know what size Bitmap to look for
         opts.inJustDecodeBounds = true;
+        opts.inSampleSize = 1;
         BitmapFactory.decodeStream(is, null, opts);
         IoUtils.closeStream(is);
 
         // Turn off just decoding bounds
         opts.inJustDecodeBounds = false;
+        opts.inSampleSize = sampleSize;
+    }
+
+    /**
+     * @return true if images of {@code mimeType} can never contain any transparency.
+     */
+    static boolean isOpaque(String mimeType) {
+        return "image/jpeg".equals(mimeType);
+    }
+
+    /**
+     * Prior to KitKat, inBitmap can only be used when the sample size is 1.
+     */
+    private static boolean canInBitmapWhenSampled() {
+        return Build.VERSION.SDK_INT >= Constants.SDK_KITKAT;
+    }
+
+    /**
+     * @return the size of one dimension of an image once it has been decoded with {@code
+     *         sampleSize}. JPEG decoding rounds up, whereas the other decoders round down.
+     */
+    static int getSampledDimension(int size, int sampleSize, String mimeType) {
+        if (sampleSize <= 1) {
+            return size;
+        }
+        if ("image/jpeg".equals(mimeType)) {
+            return (size + sampleSize - 1) / sampleSize;
+        }
+        return size / sampleSize;
+    }
+
+    /**
+     * @return the size of one dimension of a Bitmap which is scaled down by {@code scale} after it
+     *         has been decoded. This rounds up like JPEG decoding, the most common source, so that
+     *         scaling a decoded variant gives the same size as decoding with the larger sample
+     *         size would have.
+     */
+    static int getDownsampledDimension(int size, int scale) {
+        return Math.max(1, getSampledDimension(size, scale, "image/jpeg"));
+    }
+
+    /**
+     * @return the largest power-of-two sample size which results in a Bitmap which is still at
+     *         least {@code reqWidth} x {@code reqHeight}.
+     */
+    static int calculateInSampleSize(int width, int height, int reqWidth, int reqHeight) {
+        int inSampleSize = 1;
+
+        while ((width / (inSampleSize * 2)) >= reqWidth
+                && (height / (inSampleSize * 2)) >= reqHeight) {
+            inSampleSize *= 2;
+        }
+
+        return inSampleSize;
+    }
+
+    /**
+     * @return the pooled entry whose Bitmap has been set as {@code opts.inBitmap}, or {@code null}
+     *         if there was not a suitable one.
+     */
+    private CacheableBitmapDrawable addInBitmapOptions(BitmapFactory.Options opts) {
         // Make sure the decoded file is mutable
         opts.inMutable = true;
 
         // Try and find Bitmap to use for inBitmap
-        Bitmap reusableBm = mMemoryCache.getBitmapFromRemoved(opts.outWidth, opts.outHeight);
-        if (reusableBm != null) {
+        final Bitmap.Config config = null != opts.inPreferredConfig
+                ? opts.inPreferredConfig : Bitmap.Config.ARGB_8888;
+        final int width = getSampledDimension(opts.outWidth, opts.inSampleSize,
+                opts.outMimeType);
+        final int height = getSampledDimension(opts.outHeight, opts.inSampleSize,
+                opts.outMimeType);
+        CacheableBitmapDrawable reusable = mMemoryCache.getBitmapFromRemoved(width, height, config);
+        if (reusable != null) {
             if (Constants.DEBUG) {
                 Log.i(Constants.LOG_TAG, "Using inBitmap");
             }
-            SDK11.addInBitmapOption(opts, reusableBm);
-            return true;
+            SDK11.addInBitmapOption(opts, reusable.getBitmap());
         }
 
-        return false;
+        return reusable;
     }
 
     /**
@@ -639,8 +1886,29 @@ public class BitmapLruCache {
 
         static final int DEFAULT_MEM_CACHE_MAX_SIZE_MB = 3;
 
+        static final int DEFAULT_DISK_CACHE_MAX_PENDING_WRITES = 32;
+
+        static final int DEFAULT_DISK_CACHE_SHARD_COUNT = 1;
+
+        static final DiskCacheEngine DEFAULT_DISK_CACHE_ENGINE = DiskCacheEngine.DISK_LRU_CACHE;
+
+        static final DiskCacheEvictionPolicy DEFAULT_DISK_CACHE_EVICTION_POLICY
+                = DiskCacheEvictionPolicy.LRU;
+
         static final RecyclePolicy DEFAULT_RECYCLE_POLICY = RecyclePolicy.PRE_HONEYCOMB_ONLY;
 
+        static final EvictionPolicy DEFAULT_EVICTION_POLICY = EvictionPolicy.LRU;
+
+        static final DecodeConfigPolicy DEFAULT_DECODE_CONFIG_POLICY = DecodeConfigPolicy.REQUESTED;
+
+        static final EncodePolicy DEFAULT_ENCODE_POLICY = EncodePolicy.LOSSLESS;
+
+        static final float DEFAULT_REUSE_POOL_MEMORY_CACHE_RATIO = 1f / 4f;
+
+        // Only used for Javadoc
+        static final float DEFAULT_REUSE_POOL_MEMORY_CACHE_PERCENTAGE =
+                DEFAULT_REUSE_POOL_MEMORY_CACHE_RATIO * 100;
+
         // Only used for Javadoc
         static final float DEFAULT_MEMORY_CACHE_HEAP_PERCENTAGE = DEFAULT_MEMORY_CACHE_HEAP_RATIO
                 * 100;
@@ -659,12 +1927,33 @@ public class BitmapLruCache {
 
         private long mDiskCacheMaxSize;
 
+        private int mDiskCacheShardCount = DEFAULT_DISK_CACHE_SHARD_COUNT;
+
+        private DiskCacheEngine mDiskCacheEngine = DEFAULT_DISK_CACHE_ENGINE;
+
+        private DiskCacheEvictionPolicy mDiskCacheEvictionPolicy
+                = DEFAULT_DISK_CACHE_EVICTION_POLICY;
+
         private boolean mMemoryCacheEnabled;
 
         private int mMemoryCacheMaxSize;
 
         private RecyclePolicy mRecyclePolicy;
 
+        private int mReusePoolMaxSize = -1;
+
+        private EvictionPolicy mEvictionPolicy;
+
+        private DecodeConfigPolicy mDecodeConfigPolicy;
+
+        private EncodePolicy mEncodePolicy;
+
+        private int mDiskCacheRawPixelThreshold;
+
+        private boolean mDiskCacheWriteBehind;
+
+        private int mDiskCacheMaxPendingWrites = DEFAULT_DISK_CACHE_MAX_PENDING_WRITES;
+
         /**
          * @deprecated You should now use {@link Builder(Context)}. This is so that we can reliably
          *             set up correctly.
@@ -683,6 +1972,9 @@ public class BitmapLruCache {
             mMemoryCacheEnabled = true;
             mMemoryCacheMaxSize = DEFAULT_MEM_CACHE_MAX_SIZE_MB * MEGABYTE;
             mRecyclePolicy = DEFAULT_RECYCLE_POLICY;
+            mEvictionPolicy = DEFAULT_EVICTION_POLICY;
+            mDecodeConfigPolicy = DEFAULT_DECODE_CONFIG_POLICY;
+            mEncodePolicy = DEFAULT_ENCODE_POLICY;
         }
 
         /**
@@ -691,33 +1983,79 @@ public class BitmapLruCache {
          */
         public BitmapLruCache build() {
             final BitmapLruCache cache = new BitmapLruCache(mContext);
+            cache.setDecodeConfigPolicy(mDecodeConfigPolicy);
+            cache.setEncodePolicy(mEncodePolicy);
+            cache.setDiskCacheRawPixelThreshold(mDiskCacheRawPixelThreshold);
+            cache.setDiskCacheWriteBehind(mDiskCacheWriteBehind, mDiskCacheMaxPendingWrites);
 
             if (isValidOptionsForMemoryCache()) {
                 if (Constants.DEBUG) {
                     Log.d("BitmapLruCache.Builder", "Creating Memory Cache");
                 }
-                cache.setMemoryCache(new BitmapMemoryLruCache(mMemoryCacheMaxSize, mRecyclePolicy));
+                cache.setMemoryCache(new BitmapMemoryLruCache(mMemoryCacheMaxSize,
+                        getReusePoolMaxSize(), mRecyclePolicy, mEvictionPolicy));
             }
 
             if (isValidOptionsForDiskCache()) {
-                new AsyncTask<Void, Void, DiskLruCache>() {
+                cache.setDiskCacheOpening();
+
+                final AsyncTask<Void, Void, Void> openTask = new AsyncTask<Void, Void, Void>() {
 
                     @Override
-                    protected DiskLruCache doInBackground(Void... params) {
+                    protected Void doInBackground(Void... params) {
+                        final long startTime = SystemClock.elapsedRealtime();
+                        final DiskCacheStorage diskCache = openDiskCache();
+                        final long openTime = SystemClock.elapsedRealtime() - startTime;
+
+                        if (Constants.DEBUG) {
+                            Log.d(Constants.LOG_TAG, "Opening disk cache took " + openTime + "ms");
+                        }
+
+                        // Set here rather than in onPostExecute(), so that requests waiting for
+                        // the disk cache don't also wait for the main thread
+                        cache.setDiskCache(diskCache, openTime);
+                        return null;
+                    }
+
+                    private DiskCacheStorage openDiskCache() {
+                        if (mDiskCacheEngine == DiskCacheEngine.PACK_FILE) {
+                            try {
+                                ShardedDiskCache.delete(mDiskCacheLocation,
+                                        DiskCacheMetadata.APP_VERSION,
+                                        DiskCacheMetadata.VALUE_COUNT);
+                                return PackFileDiskCache.open(mDiskCacheLocation,
+                                        mDiskCacheMaxSize,
+                                        DiskCacheEvictor.create(mDiskCacheEvictionPolicy));
+                            } catch (IOException e) {
+                                e.printStackTrace();
+                                return null;
+                            }
+                        }
+
+                        if (mDiskCacheEvictionPolicy != DiskCacheEvictionPolicy.LRU) {
+                            Log.w(Constants.LOG_TAG, "DiskLruCache only supports LRU eviction, "
+                                    + "ignoring " + mDiskCacheEvictionPolicy
+                                    + ". Use the PACK_FILE engine for other policies.");
+                        }
+
                         try {
-                            return DiskLruCache.open(mDiskCacheLocation, 0, 1, mDiskCacheMaxSize);
+                            return ShardedDiskCache.open(mDiskCacheLocation,
+                                    DiskCacheMetadata.APP_VERSION, DiskCacheMetadata.VALUE_COUNT,
+                                    mDiskCacheMaxSize, mDiskCacheShardCount);
                         } catch (IOException e) {
                             e.printStackTrace();
                             return null;
                         }
                     }
 
-                    @Override
-                    protected void onPostExecute(DiskLruCache result) {
-                        cache.setDiskCache(result);
-                    }
+                };
 
-                }.execute();
+                if (Build.VERSION.SDK_INT >= Build.VERSION_CODES.HONEYCOMB) {
+                    // Don't wait behind the app's own AsyncTasks on the serial executor
+                    SDK11.executeOnThreadPool(openTask);
+                } else {
+                    openTask.execute();
+                }
             }
 
             return cache;
@@ -754,6 +2092,63 @@ public class BitmapLruCache {
             return this;
         }
 
+        /**
+         * Sets the engine which stores the Disk Cache. Defaults to {@link
+         * DiskCacheEngine#DISK_LRU_CACHE}.
+         *
+         * @param engine - New disk cache engine, can not be null.
+         * @return This Builder object to allow for chaining of calls to set methods.
+         */
+        public Builder setDiskCacheEngine(DiskCacheEngine engine) {
+            if (null == engine) {
+                throw new IllegalArgumentException("The disk cache engine can not be null");
+            }
+
+            mDiskCacheEngine = engine;
+            return this;
+        }
+
+        /**
+         * Sets the policy which decides which entries are evicted once the Disk Cache is full.
+         * Defaults to {@link DiskCacheEvictionPolicy#LRU}. <p/> The policy is only used with
+         * {@link DiskCacheEngine#PACK_FILE}, so you also need to call {@link
+         * #setDiskCacheEngine(DiskCacheEngine)} with it. The default engine, {@link
+         * DiskCacheEngine#DISK_LRU_CACHE}, always evicts in least recently used order, as {@link
+         * DiskLruCache} evicts internally. Any other policy is ignored with a warning there.
+         *
+         * @param evictionPolicy - New disk cache eviction policy, can not be null.
+         * @return This Builder object to allow for chaining of calls to set methods.
+         */
+        public Builder setDiskCacheEvictionPolicy(DiskCacheEvictionPolicy evictionPolicy) {
+            if (null == evictionPolicy) {
+                throw new IllegalArgumentException(
+                        "The disk cache eviction policy can not be null");
+            }
+
+            mDiskCacheEvictionPolicy = evictionPolicy;
+            return this;
+        }
+
+        /**
+         * Set the number of independent shards which the Disk Cache is split into. Only used by
+         * {@link DiskCacheEngine#DISK_LRU_CACHE}. Each shard has
+         * it's own journal and lock, so threads reading different entries block each other less.
+         * Each shard is given an equal share of the size set with {@link
+         * #setDiskCacheMaxSize(long)}, and shards are stored in sub-directories of the Disk Cache
+         * location. Changing this starts a new, empty Disk Cache. Defaults to {@value
+         * #DEFAULT_DISK_CACHE_SHARD_COUNT}.
+         *
+         * @return This Builder object to allow for chaining of calls to set methods.
+         */
+        public Builder setDiskCacheShardCount(int shardCount) {
+            if (shardCount <= 0) {
+                throw new IllegalArgumentException("The shard count must be positive");
+            }
+
+            mDiskCacheShardCount = shardCount;
+            return this;
+        }
+
         /**
          * Set whether the Memory Cache should be enabled. Defaults to {@code true}.
          *
@@ -799,6 +2194,119 @@ public class BitmapLruCache {
             return setMemoryCacheMaxSize(size);
         }
 
+        /**
+         * Sets the eviction policy of the Memory Cache. This controls which entries are removed
+         * once the Memory Cache is full. Defaults to {@link EvictionPolicy#LRU}.
+         *
+         * @param evictionPolicy - New eviction policy, can not be null.
+         * @return This Builder object to allow for chaining of calls to set methods.
+         */
+        public Builder setMemoryCacheEvictionPolicy(EvictionPolicy evictionPolicy) {
+            if (null == evictionPolicy) {
+                throw new IllegalArgumentException("The eviction policy can not be null");
+            }
+
+            mEvictionPolicy = evictionPolicy;
+            return this;
+        }
+
+        /**
+         * Set whether {@code put} calls return as soon as the memory cache has been updated,
+         * leaving the disk cache write to a background thread. Writes are queued in order, and a
+         * queued write is replaced by a newer {@code put} for the same URL. Use {@link
+         * BitmapLruCache#flushPendingWrites()} to wait for them. Buffers given to {@link
+         * BitmapLruCache#put(String, ByteBuffer)} and {@link BitmapLruCache#put(String, byte[])}
+         * must not be modified afterwards. Defaults to false. <p/> Bitmaps given to {@link
+         * BitmapLruCache#put(String, Bitmap)} are always written in the background.
+         *
+         * @return This Builder object to allow for chaining of calls to set methods.
+         */
+        public Builder setDiskCacheWriteBehindEnabled(boolean enabled) {
+            mDiskCacheWriteBehind = enabled;
+            return this;
+        }
+
+        /**
+         * Set the maximum number of disk cache writes which can be waiting in the background.
+         * Once this is reached, the disk cache writes of further {@code put} calls are dropped
+         * rather than blocking the caller, which may be the main thread. Defaults to {@value
+         * #DEFAULT_DISK_CACHE_MAX_PENDING_WRITES}.
+         *
+         * @return This Builder object to allow for chaining of calls to set methods.
+         */
+        public Builder setDiskCacheMaxPendingWrites(int maxPendingWrites) {
+            if (maxPendingWrites <= 0) {
+                throw new IllegalArgumentException("The maximum pending writes must be positive");
+            }
+
+            mDiskCacheMaxPendingWrites = maxPendingWrites;
+            return this;
+        }
+
+        /**
+         * Set the size under which images are stored in the disk cache as uncompressed pixels,
+         * rather than in their original format. Loading these is just a copy, so it is much
+         * quicker than a decode, but they use more disk space. This suits small images which are
+         * loaded often, such as thumbnails. Only full size decodes are stored this way. Defaults
+         * to 0, which disables this.
+         *
+         * @param maxBytes - Maximum number of bytes of decoded pixels which an image can have to
+         *                 be stored uncompressed.
+         * @return This Builder object to allow for chaining of calls to set methods.
+         */
+        public Builder setDiskCacheRawPixelThreshold(int maxBytes) {
+            mDiskCacheRawPixelThreshold = maxBytes;
+            return this;
+        }
+
+        /**
+         * Sets the encode policy. This controls the format and quality which Bitmaps given to
+         * {@link BitmapLruCache#put(String, Bitmap)} are compressed with for the disk cache.
+         * Defaults to {@link EncodePolicy#LOSSLESS}.
+         *
+         * @param encodePolicy - New encode policy, can not be null.
+         * @return This Builder object to allow for chaining of calls to set methods.
+         */
+        public Builder setEncodePolicy(EncodePolicy encodePolicy) {
+            if (null == encodePolicy) {
+                throw new IllegalArgumentException("The encode policy can not be null");
+            }
+
+            mEncodePolicy = encodePolicy;
+            return this;
+        }
+
+        /**
+         * Sets the decode config policy. This controls which {@link Bitmap.Config} images are
+         * decoded with. Defaults to {@link DecodeConfigPolicy#REQUESTED}.
+         *
+         * @param decodeConfigPolicy - New decode config policy, can not be null.
+         * @return This Builder object to allow for chaining of calls to set methods.
+         */
+        public Builder setDecodeConfigPolicy(DecodeConfigPolicy decodeConfigPolicy) {
+            if (null == decodeConfigPolicy) {
+                throw new IllegalArgumentException("The decode config policy can not be null");
+            }
+
+            mDecodeConfigPolicy = decodeConfigPolicy;
+            return this;
+        }
+
+        /**
+         * Set the maximum number of bytes which are used to keep evicted Bitmaps for re-use by
+         * later decodes. These bytes are taken from the Memory Cache maximum size, so that the
+         * total memory used never exceeds it. Defaults to {@value
+         * #DEFAULT_REUSE_POOL_MEMORY_CACHE_PERCENTAGE}% of the Memory Cache maximum size, and is
+         * capped at half of it. <p/>
+         * This is only used when the {@link RecyclePolicy} allows Bitmaps to be re-used.
+         *
+         * @return This Builder object to allow for chaining of calls to set methods.
+         */
+        public Builder setReusePoolMaxSize(int size) {
+            mReusePoolMaxSize = size;
+            return this;
+        }
+
         /**
          * Sets the recycle policy. This controls if {@link android.graphics.Bitmap#recycle()} is
          * called.
@@ -815,6 +2323,13 @@ public class BitmapLruCache {
             return this;
         }
 
+        private int getReusePoolMaxSize() {
+            if (mReusePoolMaxSize < 0) {
+                return Math.round(mMemoryCacheMaxSize * DEFAULT_REUSE_POOL_MEMORY_CACHE_RATIO);
+            }
+            return Math.min(mReusePoolMaxSize, mMemoryCacheMaxSize / 2);
+        }
+
         private boolean isValidOptionsForDiskCache() {
             boolean valid = mDiskCacheEnabled;
 
@@ -838,69 +2353,146 @@ public class BitmapLruCache {
         }
     }
 
-    static final class DiskCacheFlushRunnable implements Runnable {
-
-        private final DiskLruCache mDiskCache;
-
-        public DiskCacheFlushRunnable(DiskLruCache cache) {
-            mDiskCache = cache;
-        }
+    interface InputStreamProvider {
+        InputStream getInputStream();
 
-        public void run() {
-            // Make sure we're running with a background priority
-            Process.setThreadPriority(Process.THREAD_PRIORITY_BACKGROUND);
+        /**
+         * @return the image's info if it is already known without reading the image, otherwise
+         *         {@code null}.
+         */
+        ImageHeaderParser.ImageInfo getImageInfo();
 
-            if (Constants.DEBUG) {
-                Log.d(Constants.LOG_TAG, "Flushing Disk Cache");
-            }
-            try {
-                mDiskCache.flush();
-            } catch (IOException e) {
-                e.printStackTrace();
-            }
-        }
+        /**
+         * Called when the image's info has been parsed from the stream.
+         */
+        void onImageInfoParsed(ImageHeaderParser.ImageInfo info);
     }
 
-    interface InputStreamProvider {
-        InputStream getInputStream();
-    }
+    static class ByteBufferInputStreamProvider implements InputStreamProvider {
+        final ByteBuffer mBuffer;
 
-    static class FileInputStreamProvider implements InputStreamProvider {
-        final File mFile;
+        private ImageHeaderParser.ImageInfo mImageInfo;
 
-        FileInputStreamProvider(File file) {
-            mFile = file;
+        ByteBufferInputStreamProvider(ByteBuffer buffer) {
+            mBuffer = buffer;
         }
 
         @Override
         public InputStream getInputStream() {
-            try {
-                return new FileInputStream(mFile);
-            } catch (FileNotFoundException e) {
-                Log.e(Constants.LOG_TAG, "Could not decode file: " + mFile.getAbsolutePath(), e);
-            }
-            return null;
+            return new ByteBufferInputStream(mBuffer);
+        }
+
+        @Override
+        public ImageHeaderParser.ImageInfo getImageInfo() {
+            return mImageInfo;
+        }
+
+        @Override
+        public void onImageInfoParsed(ImageHeaderParser.ImageInfo info) {
+            mImageInfo = info;
         }
     }
 
     final class SnapshotInputStreamProvider implements InputStreamProvider {
         final String mKey;
 
+        // Snapshot which has been opened, but it's image stream not yet used
+        private DiskCacheStorage.Snapshot mSnapshot;
+        // Snapshot whose image stream was last used
+        private DiskCacheStorage.Snapshot mReadSnapshot;
+
+        private ImageHeaderParser.ImageInfo mImageInfo;
+        private boolean mMetadataRead;
+        private boolean mNeedsMetadataWrite;
+
         SnapshotInputStreamProvider(String key) {
             mKey = key;
         }
 
+        /**
+         * @param info - The info for the entry, if it is already known.
+         */
+        SnapshotInputStreamProvider(String key, ImageHeaderParser.ImageInfo info) {
+            mKey = key;
+            mImageInfo = info;
+            mMetadataRead = null != info;
+        }
+
         @Override
         public InputStream getInputStream() {
+            final DiskCacheStorage.Snapshot snapshot = getSnapshot();
+            mSnapshot = null;
+            if (null == snapshot) {
+                return null;
+            }
+            mReadSnapshot = snapshot;
+
+            final InputStream is;
             try {
-                DiskLruCache.Snapshot snapshot = mDiskCache.get(mKey);
-                if (snapshot != null) {
-                    return snapshot.getInputStream(0);
-                }
+                is = snapshot.openImage();
             } catch (IOException e) {
-                Log.e(Constants.LOG_TAG, "Could open disk cache for url: " + mKey, e);
+                Log.e(Constants.LOG_TAG, "Could not read disk cache entry: " + mKey, e);
+                return null;
             }
-            return null;
+            if (is instanceof FileInputStream) {
+                // Read from memory, so the header parse and decode share one mapping
+                try {
+                    return IoUtils.openMapped((FileInputStream) is);
+                } catch (IOException e) {
+                    Log.w(Constants.LOG_TAG, "Could not map disk cache entry: " + mKey, e);
+                }
+            }
+            return is;
+        }
+
+        @Override
+        public ImageHeaderParser.ImageInfo getImageInfo() {
+            if (!mMetadataRead) {
+                mMetadataRead = true;
+
+                final DiskCacheStorage.Snapshot snapshot = getSnapshot();
+                if (null != snapshot) {
+                    try {
+                        mImageInfo = DiskCacheMetadata.decode(snapshot.getMetadata());
+                    } catch (IOException e) {
+                        Log.w(Constants.LOG_TAG, "Could not read metadata for: " + mKey, e);
+                    }
+                }
+            }
+            return mImageInfo;
+        }
+
+        @Override
+        public void onImageInfoParsed(ImageHeaderParser.ImageInfo info) {
+            mImageInfo = info;
+            mNeedsMetadataWrite = true;
+        }
+
+        /**
+         * @return true if the entry had no metadata, but it has since been parsed.
+         */
+        boolean needsMetadataWrite() {
+            return mNeedsMetadataWrite;
+        }
+
+        /**
+         * Stores {@code metadata} for the entry whose image was read, if it is unchanged.
+         */
+        void fillMetadata(String metadata) throws IOException {
+            if (null != mReadSnapshot) {
+                mReadSnapshot.fillMetadata(metadata);
+            }
+        }
+
+        private DiskCacheStorage.Snapshot getSnapshot() {
+            if (null == mSnapshot) {
+                try {
+                    mSnapshot = mDiskCache.get(mKey);
+                } catch (IOException e) {
+                    Log.e(Constants.LOG_TAG, "Could open disk cache for url: " + mKey, e);
+                }
+            }
+            return mSnapshot;
         }
     }
 }
@@ -16,97 +16,512 @@
 package uk.co.senab.bitmapcache;
 
 import android.graphics.Bitmap;
-import android.support.v4.util.LruCache;
 
-import java.lang.ref.SoftReference;
-import java.util.Collections;
-import java.util.HashSet;
 import java.util.Iterator;
-import java.util.Map.Entry;
-import java.util.Set;
+import java.util.LinkedList;
+import java.util.Queue;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.locks.ReentrantLock;
 
-final class BitmapMemoryLruCache extends LruCache<String, CacheableBitmapDrawable> {
+/**
+ * Memory cache which is safe to read from the main thread while other threads are writing.
+ *
+ * <p> Entries are held in a lock-striped {@link ConcurrentHashMap}, so {@link #get(MemoryKey)}
+ * never takes a lock. Rather than re-ordering a list on every read, a read just marks the entry as
+ * referenced. Writers then evict in CLOCK (second chance) order, which approximates LRU: an entry
+ * which has been read since it was last looked at is given another pass. Only eviction is
+ * serialized, and only between writers. </p>
+ *
+ * <p> With {@link BitmapLruCache.EvictionPolicy#W_TINY_LFU}, new entries are added to a small
+ * admission window. When an entry leaves the window it is only admitted to the main region if it
+ * has been used more often than the entry it would evict from there, according to a {@link
+ * FrequencySketch}. </p>
+ */
+final class BitmapMemoryLruCache {
+
+    // Expected number of threads writing concurrently
+    static final int CONCURRENCY_LEVEL = 16;
+
+    // Proportion of the cache given to the admission window. This is larger than the usual 1% as
+    // each entry here is a whole Bitmap, so a tiny window would not hold any.
+    static final float W_TINY_LFU_WINDOW_RATIO = 0.2f;
+
+    // Used to size the frequency sketch
+    static final int ESTIMATED_AVERAGE_ENTRY_SIZE = 32 * 1024;
+
+    private final ConcurrentHashMap<MemoryKey, Node> mMap;
+
+    // New entries, in the order they were added (or given a second chance). May contain dead
+    // entries. With LRU this is the only queue.
+    private final ConcurrentLinkedQueue<Node> mWindowQueue;
+
+    // Entries admitted to the main region. Only accessed while holding mEvictionLock.
+    private final LinkedList<Node> mMainQueue;
+
+    private final ReentrantLock mEvictionLock;
+
+    private final AtomicInteger mSize;
+
+    private final AtomicInteger mWindowSize;
+
+    // Only accessed while holding mEvictionLock
+    private int mMainSize;
+
+    // Number of dead nodes which are still queued
+    private final AtomicInteger mDeadCount;
+
+    private final int mMaxSize;
+
+    private final int mWindowMaxSize;
+
+    private final BitmapLruCache.EvictionPolicy mEvictionPolicy;
 
-    private final Set<SoftReference<CacheableBitmapDrawable>> mRemovedEntries;
+    // Only used with W_TINY_LFU
+    private final FrequencySketch mSketch;
+
+    private final AtomicInteger mHitCount;
+    private final AtomicInteger mMissCount;
+
+    private final BitmapReusePool mReusePool;
     private final BitmapLruCache.RecyclePolicy mRecyclePolicy;
 
-    BitmapMemoryLruCache(int maxSize, BitmapLruCache.RecyclePolicy policy) {
-        super(maxSize);
+    /**
+     * @param maxSize          - Total number of bytes which can be used, including the reuse pool.
+     * @param reusePoolMaxSize - Number of bytes out of {@code maxSize} which are given to the
+     *                         reuse pool, if the recycle policy allows inBitmap.
+     */
+    BitmapMemoryLruCache(int maxSize, int reusePoolMaxSize, BitmapLruCache.RecyclePolicy policy,
+            BitmapLruCache.EvictionPolicy evictionPolicy) {
+        mMaxSize = policy.canInBitmap() ? maxSize - reusePoolMaxSize : maxSize;
+        if (mMaxSize <= 0) {
+            throw new IllegalArgumentException("maxSize <= 0");
+        }
+
+        mMap = new ConcurrentHashMap<MemoryKey, Node>(16, 0.75f, CONCURRENCY_LEVEL);
+        mWindowQueue = new ConcurrentLinkedQueue<Node>();
+        mMainQueue = new LinkedList<Node>();
+        mEvictionLock = new ReentrantLock();
+        mSize = new AtomicInteger();
+        mWindowSize = new AtomicInteger();
+        mDeadCount = new AtomicInteger();
+        mHitCount = new AtomicInteger();
+        mMissCount = new AtomicInteger();
+
+        mEvictionPolicy = evictionPolicy;
+        if (evictionPolicy == BitmapLruCache.EvictionPolicy.W_TINY_LFU) {
+            mWindowMaxSize = Math.round(mMaxSize * W_TINY_LFU_WINDOW_RATIO);
+            mSketch = new FrequencySketch(mMaxSize / ESTIMATED_AVERAGE_ENTRY_SIZE);
+        } else {
+            mWindowMaxSize = mMaxSize;
+            mSketch = null;
+        }
 
         mRecyclePolicy = policy;
-        mRemovedEntries = policy.canInBitmap()
-                ? Collections.synchronizedSet(new HashSet<SoftReference<CacheableBitmapDrawable>>())
-                : null;
+        mReusePool = policy.canInBitmap() ? new BitmapReusePool(reusePoolMaxSize) : null;
     }
 
     CacheableBitmapDrawable put(CacheableBitmapDrawable value) {
         if (null != value) {
             value.setCached(true);
-            return put(value.getUrl(), value);
+            return put(value.getMemoryKey(), value);
         }
 
         return null;
     }
 
+    /**
+     * Returns the value for {@code key} if it exists in the cache. This method never blocks.
+     */
+    CacheableBitmapDrawable get(MemoryKey key) {
+        if (null != mSketch) {
+            mSketch.increment(key.hashCode());
+        }
+
+        final Node node = mMap.get(key);
+        if (null != node) {
+            node.mReferenced = true;
+            mHitCount.incrementAndGet();
+            return node.mValue;
+        }
+
+        mMissCount.incrementAndGet();
+        return null;
+    }
+
+    /**
+     * Returns the value for {@code key} if it exists in the cache, without recording the access.
+     */
+    CacheableBitmapDrawable peek(MemoryKey key) {
+        final Node node = mMap.get(key);
+        return null != node ? node.mValue : null;
+    }
+
+    /**
+     * Records a miss for a lookup which was made with {@link #peek(MemoryKey)}.
+     */
+    void recordMiss() {
+        mMissCount.incrementAndGet();
+    }
+
+    /**
+     * Caches {@code value} for {@code key}, evicting entries if the cache is now over it's maximum
+     * size.
+     *
+     * @return the previous value mapped by {@code key}.
+     */
+    CacheableBitmapDrawable put(MemoryKey key, CacheableBitmapDrawable value) {
+        if (null != mSketch) {
+            mSketch.increment(key.hashCode());
+        }
+
+        final Node node = new Node(key, value, sizeOf(value));
+        mSize.addAndGet(node.mSize);
+
+        // Mapped before it is queued, so that it can't be polled and evicted while not yet mapped
+        final Node previous = mMap.put(key, node);
+        mWindowSize.addAndGet(node.mSize);
+        node.mQueueState.set(Node.QUEUED);
+        mWindowQueue.offer(node);
+
+        if (null != previous) {
+            onNodeRemoved(previous);
+            entryRemoved(false, key, previous.mValue, value);
+        }
+
+        trimToSize(mMaxSize);
+        return null != previous ? previous.mValue : null;
+    }
+
+    /**
+     * Removes the entry for {@code key} if it exists.
+     *
+     * @return the previous value mapped by {@code key}.
+     */
+    CacheableBitmapDrawable remove(MemoryKey key) {
+        final Node previous = mMap.remove(key);
+        if (null != previous) {
+            onNodeRemoved(previous);
+            entryRemoved(false, key, previous.mValue, null);
+            return previous.mValue;
+        }
+        return null;
+    }
+
+    /**
+     * Removes the entry for {@code key} only if it is currently mapped to {@code value}.
+     *
+     * @return true if the entry was removed.
+     */
+    boolean remove(MemoryKey key, CacheableBitmapDrawable value) {
+        final Node node = mMap.get(key);
+        if (null != node && node.mValue == value && mMap.remove(key, node)) {
+            onNodeRemoved(node);
+            entryRemoved(false, key, value, null);
+            return true;
+        }
+        return false;
+    }
+
+    /**
+     * Removes the entries for every variant of {@code url}.
+     */
+    void removeAll(String url) {
+        for (MemoryKey key : mMap.keySet()) {
+            if (key.mUrl.equals(url)) {
+                remove(key);
+            }
+        }
+    }
+
+    void evictAll() {
+        trimToSize(-1);
+    }
+
+    /**
+     * @return the number of bytes held by the cache, not including the reuse pool.
+     */
+    int size() {
+        return mSize.get();
+    }
+
+    int maxSize() {
+        return mMaxSize;
+    }
+
+    /**
+     * @return the number of times {@link #get(MemoryKey)} returned a value.
+     */
+    int hitCount() {
+        return mHitCount.get();
+    }
+
+    /**
+     * @return the number of times {@link #get(MemoryKey)} returned {@code null}.
+     */
+    int missCount() {
+        return mMissCount.get();
+    }
+
     BitmapLruCache.RecyclePolicy getRecyclePolicy() {
         return mRecyclePolicy;
     }
 
-    @Override
-    protected int sizeOf(String key, CacheableBitmapDrawable value) {
+    BitmapLruCache.EvictionPolicy getEvictionPolicy() {
+        return mEvictionPolicy;
+    }
+
+    BitmapReusePool getReusePool() {
+        return mReusePool;
+    }
+
+    /**
+     * @return the number of bytes held by both the cache and the reuse pool.
+     */
+    int totalSize() {
+        return null != mReusePool ? size() + mReusePool.size() : size();
+    }
+
+    /**
+     * @return a pooled entry whose Bitmap can be used as the {@code inBitmap} for a decode of the
+     *         given dimensions and config, or {@code null}.
+     */
+    CacheableBitmapDrawable getBitmapFromRemoved(final int width, final int height,
+            final Bitmap.Config config) {
+        return mReusePool != null ? mReusePool.get(width, height, config) : null;
+    }
+
+    /**
+     * @return a pooled entry whose Bitmap has exactly the given dimensions and config, or {@code
+     *         null}.
+     */
+    CacheableBitmapDrawable getExactBitmapFromRemoved(final int width, final int height,
+            final Bitmap.Config config) {
+        return mReusePool != null ? mReusePool.getExact(width, height, config) : null;
+    }
+
+    void trimMemory() {
+        if (null != mReusePool) {
+            mReusePool.evictAll();
+        }
+
+        for (Node node : mMap.values()) {
+            if (!node.mValue.isBeingDisplayed()) {
+                remove(node.mKey, node.mValue);
+            }
+        }
+    }
+
+    private int sizeOf(CacheableBitmapDrawable value) {
         return value.getMemorySize();
     }
 
-    @Override
-    protected void entryRemoved(boolean evicted, String key, CacheableBitmapDrawable oldValue,
+    private void entryRemoved(boolean evicted, MemoryKey key, CacheableBitmapDrawable oldValue,
             CacheableBitmapDrawable newValue) {
         // Notify the wrapper that it's no longer being cached
         oldValue.setCached(false);
 
-        if (mRemovedEntries != null && oldValue.isBitmapValid() && oldValue.isBitmapMutable()) {
-            synchronized (mRemovedEntries) {
-                mRemovedEntries.add(new SoftReference<CacheableBitmapDrawable>(oldValue));
+        // If it's still being displayed or written to disk, it will be offered to the pool once
+        // it is released
+        if (mReusePool != null && !oldValue.isReferencedByCache() && !oldValue.isBeingDisplayed()
+                && oldValue.isBitmapValid() && oldValue.isBitmapMutable()) {
+            mReusePool.put(oldValue);
+        }
+    }
+
+    /**
+     * Called when {@code value} is no longer being displayed. If it is also no longer cached, then
+     * it's Bitmap can now be re-used.
+     */
+    void onEntryReleased(CacheableBitmapDrawable value) {
+        if (mReusePool != null && !value.isReferencedByCache() && !value.isBeingDisplayed()
+                && value.isBitmapValid() && value.isBitmapMutable()) {
+            mReusePool.put(value);
+        }
+    }
+
+    /**
+     * Should be called once a node has been removed from the map, by the thread which removed it.
+     * The node is left in it's queue, and is accounted for when it is next polled. A node which
+     * eviction has already polled is not counted, as it will never be polled again.
+     */
+    private void onNodeRemoved(Node node) {
+        node.mDead = true;
+        mSize.addAndGet(-node.mSize);
+
+        if (node.mQueueState.compareAndSet(Node.QUEUED, Node.QUEUED_DEAD)) {
+            // If the queues are mostly dead nodes, clear them out
+            if (mDeadCount.incrementAndGet() > mMap.size() + CONCURRENCY_LEVEL) {
+                purgeDeadNodes();
             }
         }
     }
 
-    Bitmap getBitmapFromRemoved(final int width, final int height) {
-        if (mRemovedEntries == null) {
-            return null;
+    private void purgeDeadNodes() {
+        mEvictionLock.lock();
+        try {
+            purgeDeadNodes(mWindowQueue);
+            purgeDeadNodes(mMainQueue);
+        } finally {
+            mEvictionLock.unlock();
         }
+    }
 
-        Bitmap result = null;
+    private void purgeDeadNodes(Queue<Node> queue) {
+        final Iterator<Node> it = queue.iterator();
+        while (it.hasNext()) {
+            final Node node = it.next();
+            if (node.mDead) {
+                it.remove();
+                onNodeDequeued(node);
+            }
+        }
+    }
 
-        synchronized (mRemovedEntries) {
-            final Iterator<SoftReference<CacheableBitmapDrawable>> it = mRemovedEntries.iterator();
+    private void trimToSize(final int maxSize) {
+        if (mSize.get() <= maxSize) {
+            return;
+        }
 
-            while (it.hasNext()) {
-                CacheableBitmapDrawable value = it.next().get();
+        final boolean evictAll = maxSize < 0;
 
-                if (value != null && value.isBitmapValid() && value.isBitmapMutable()) {
-                    if (value.getIntrinsicWidth() == width
-                            && value.getIntrinsicHeight() == height) {
-                        it.remove();
-                        result = value.getBitmap();
-                        break;
+        mEvictionLock.lock();
+        try {
+            while (mSize.get() > maxSize) {
+                if (mMainQueue.isEmpty() || mWindowSize.get() > mWindowMaxSize) {
+                    final Node candidate = pollVictim(mWindowQueue, evictAll);
+                    if (null == candidate) {
+                        final Node victim = pollVictim(mMainQueue, evictAll);
+                        if (null == victim) {
+                            break;
+                        }
+                        evict(victim);
+                    } else if (null != mSketch && !evictAll && admit(candidate)) {
+                        candidate.mInMain = true;
+                        mMainSize += candidate.mSize;
+                        candidate.mQueueState.set(Node.QUEUED);
+                        mMainQueue.offer(candidate);
+                    } else {
+                        evict(candidate);
                     }
                 } else {
-                    it.remove();
+                    final Node victim = pollVictim(mMainQueue, evictAll);
+                    if (null == victim) {
+                        break;
+                    }
+                    evict(victim);
                 }
             }
+        } finally {
+            mEvictionLock.unlock();
+        }
+    }
+
+    /**
+     * Decides whether {@code candidate}, which is leaving the window, should be moved into the
+     * main region. If the main region is full, the candidate is compared against the main region's
+     * victim and the least frequently used of the two is evicted.
+     */
+    private boolean admit(Node candidate) {
+        if (mMainSize + candidate.mSize <= mMaxSize - mWindowMaxSize) {
+            return true;
+        }
+
+        final Node victim = pollVictim(mMainQueue, false);
+        if (null == victim) {
+            return true;
         }
 
-        return result;
+        if (mSketch.frequency(candidate.mKey.hashCode()) > mSketch
+                .frequency(victim.mKey.hashCode())) {
+            evict(victim);
+            return true;
+        }
+
+        // Put the victim back at the head, so that it is the first to be considered next time
+        victim.mInMain = true;
+        mMainSize += victim.mSize;
+        victim.mQueueState.set(Node.QUEUED);
+        mMainQueue.addFirst(victim);
+        return false;
     }
 
-    void trimMemory() {
-        final Set<Entry<String, CacheableBitmapDrawable>> values = snapshot().entrySet();
+    /**
+     * Polls {@code queue} for the next node to evict, in CLOCK order. Dead nodes are dropped, and
+     * referenced nodes are given a second chance.
+     */
+    private Node pollVictim(Queue<Node> queue, boolean evictAll) {
+        Node node;
+        while (null != (node = queue.poll())) {
+            if (node.mDead) {
+                onNodeDequeued(node);
+                continue;
+            }
 
-        for (Entry<String, CacheableBitmapDrawable> entry : values) {
-            CacheableBitmapDrawable value = entry.getValue();
-            if (null == value || !value.isBeingDisplayed()) {
-                remove(entry.getKey());
+            if (node.mReferenced && !evictAll) {
+                // Give the node a second chance
+                node.mReferenced = false;
+                queue.offer(node);
+                continue;
             }
+
+            onNodeDequeued(node);
+            return node;
+        }
+        return null;
+    }
+
+    /**
+     * Should be called once a node has been taken out of it's queue. Must be called while holding
+     * the eviction lock.
+     */
+    private void onNodeDequeued(Node node) {
+        if (node.mQueueState.getAndSet(Node.NOT_QUEUED) == Node.QUEUED_DEAD) {
+            mDeadCount.decrementAndGet();
+        }
+
+        if (node.mInMain) {
+            node.mInMain = false;
+            mMainSize -= node.mSize;
+        } else {
+            mWindowSize.addAndGet(-node.mSize);
+        }
+    }
+
+    private void evict(Node node) {
+        if (mMap.remove(node.mKey, node)) {
+            node.mDead = true;
+            mSize.addAndGet(-node.mSize);
+            entryRemoved(true, node.mKey, node.mValue, null);
+        }
+    }
+
+    static final class Node {
+        // Queue states, so that each dead node is counted once while it is queued
+        static final int NOT_QUEUED = 0;
+        static final int QUEUED = 1;
+        static final int QUEUED_DEAD = 2;
+
+        final MemoryKey mKey;
+        final CacheableBitmapDrawable mValue;
+        final int mSize;
+
+        // Set on read, cleared when given a second chance by eviction
+        volatile boolean mReferenced;
+
+        // Set once the node has been removed from the map
+        volatile boolean mDead;
+
+        // Whether the node is in the main queue. Only accessed while holding the eviction lock.
+        boolean mInMain;
+
+        final AtomicInteger mQueueState = new AtomicInteger(NOT_QUEUED);
+
+        Node(MemoryKey key, CacheableBitmapDrawable value, int size) {
+            mKey = key;
+            mValue = value;
+            mSize = size;
         }
     }
 
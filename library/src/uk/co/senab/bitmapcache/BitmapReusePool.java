@@ -0,0 +1,368 @@
+/*******************************************************************************
+ * Copyright (c) 2013 Chris Banes.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ ******************************************************************************/
+package uk.co.senab.bitmapcache;
+
+import android.graphics.Bitmap;
+import android.os.Build;
+
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.LinkedList;
+import java.util.ListIterator;
+import java.util.Map;
+import java.util.SortedMap;
+import java.util.TreeMap;
+
+/**
+ * Pool of Bitmaps which have been removed from the memory cache, and can be re-used as the
+ * {@code inBitmap} for new decodes.
+ *
+ * <p> Prior to KitKat, {@code inBitmap} needs a Bitmap of exactly the same size, so entries are
+ * bucketed by width, height and {@link Bitmap.Config}. From KitKat onwards any mutable Bitmap
+ * with enough allocated bytes can be reconfigured, so entries are instead kept sorted by their
+ * allocation size and the smallest one which fits is chosen. </p>
+ *
+ * <p> The pool has it's own byte budget. When it is exceeded, the least recently added entries
+ * are dropped from the pool. </p>
+ *
+ * <p> Only collections available on API level 4 are used, so no {@code ArrayDeque} or {@code
+ * NavigableMap} methods. </p>
+ */
+final class BitmapReusePool {
+
+    /**
+     * When reusing by size, a Bitmap which is more than this multiple of the required size is not
+     * used. Doing so would keep a large allocation alive for a small image.
+     */
+    static final int MAX_SIZE_MULTIPLE = 8;
+
+    // All entries, in the order they were added. Used for LRU eviction.
+    private final LinkedHashMap<CacheableBitmapDrawable, Object> mEntries;
+
+    // Entries bucketed by Key, or by allocation size. Each bucket is in the same order as mEntries.
+    private final Map<Object, LinkedList<CacheableBitmapDrawable>> mBuckets;
+
+    // Same instance as mBuckets when reusing by size, otherwise null
+    private final TreeMap<Object, LinkedList<CacheableBitmapDrawable>> mSizeBuckets;
+
+    private final int mMaxSize;
+    private int mSize;
+
+    private int mHitCount;
+    private int mMissCount;
+    private int mEvictionCount;
+
+    BitmapReusePool(int maxSize) {
+        this(maxSize, Build.VERSION.SDK_INT >= Constants.SDK_KITKAT);
+    }
+
+    BitmapReusePool(int maxSize, boolean reuseBySize) {
+        mMaxSize = maxSize;
+        mEntries = new LinkedHashMap<CacheableBitmapDrawable, Object>();
+
+        if (reuseBySize) {
+            mSizeBuckets = new TreeMap<Object, LinkedList<CacheableBitmapDrawable>>();
+            mBuckets = mSizeBuckets;
+        } else {
+            mSizeBuckets = null;
+            mBuckets = new HashMap<Object, LinkedList<CacheableBitmapDrawable>>();
+        }
+    }
+
+    /**
+     * @return true if the pool matches Bitmaps by allocation size, rather than by dimensions.
+     */
+    boolean isReusingBySize() {
+        return null != mSizeBuckets;
+    }
+
+    synchronized void put(CacheableBitmapDrawable value) {
+        if (mEntries.containsKey(value) || value.getMemorySize() > mMaxSize) {
+            return;
+        }
+
+        final Object key;
+        if (isReusingBySize()) {
+            key = value.getMemorySize();
+        } else {
+            final Bitmap bitmap = value.getBitmap();
+            key = new Key(bitmap.getWidth(), bitmap.getHeight(), bitmap.getConfig());
+        }
+
+        LinkedList<CacheableBitmapDrawable> bucket = mBuckets.get(key);
+        if (null == bucket) {
+            bucket = new LinkedList<CacheableBitmapDrawable>();
+            mBuckets.put(key, bucket);
+        }
+        bucket.addLast(value);
+        mEntries.put(value, key);
+        mSize += value.getMemorySize();
+
+        trimToSize(mMaxSize);
+    }
+
+    /**
+     * Removes and returns an entry from the pool which can be used to decode a Bitmap with the
+     * given dimensions and config. When reusing by size, this is the entry with the smallest
+     * allocation which is large enough.
+     *
+     * @return an entry with a mutable Bitmap which can be used for {@code inBitmap}, or {@code
+     *         null} if the pool does not contain a suitable entry. The entry's {@link
+     *         CacheableBitmapDrawable#getMemorySize()} is the Bitmap's allocation size.
+     */
+    synchronized CacheableBitmapDrawable get(final int width, final int height,
+            final Bitmap.Config config) {
+        CacheableBitmapDrawable value = null;
+
+        if (isReusingBySize()) {
+            final long required = (long) width * height * getBytesPerPixel(config);
+            if (required > 0 && required <= mMaxSize) {
+                final long limit = required * MAX_SIZE_MULTIPLE;
+
+                // The tail is looked up again each time, as polling may remove the bucket
+                int from = (int) required;
+                while (null == value) {
+                    final SortedMap<Object, LinkedList<CacheableBitmapDrawable>> tail
+                            = mSizeBuckets.tailMap(from);
+                    if (tail.isEmpty()) {
+                        break;
+                    }
+
+                    final int key = (Integer) tail.firstKey();
+                    if (key > limit) {
+                        break;
+                    }
+                    value = pollBucket(key);
+
+                    if (key == Integer.MAX_VALUE) {
+                        break;
+                    }
+                    from = key + 1;
+                }
+            }
+        } else {
+            value = pollBucket(new Key(width, height, config));
+        }
+
+        if (null != value) {
+            mHitCount++;
+        } else {
+            mMissCount++;
+        }
+        return value;
+    }
+
+    /**
+     * Removes and returns an entry from the pool whose Bitmap has exactly the given dimensions and
+     * config. This is needed when the pixels are copied in directly, rather than decoded.
+     *
+     * @return an entry with a mutable Bitmap, or {@code null} if the pool does not contain one.
+     */
+    synchronized CacheableBitmapDrawable getExact(final int width, final int height,
+            final Bitmap.Config config) {
+        if (!isReusingBySize()) {
+            return get(width, height, config);
+        }
+
+        final long bytes = (long) width * height * getBytesPerPixel(config);
+        final Object key = bytes <= Integer.MAX_VALUE ? (int) bytes : null;
+        final LinkedList<CacheableBitmapDrawable> bucket = null != key ? mBuckets.get(key) : null;
+
+        if (null != bucket) {
+            // Most recently added first
+            final ListIterator<CacheableBitmapDrawable> it = bucket.listIterator(bucket.size());
+            while (it.hasPrevious()) {
+                final CacheableBitmapDrawable value = it.previous();
+                if (!value.isBitmapValid()) {
+                    continue;
+                }
+
+                final Bitmap bitmap = value.getBitmap();
+                if (bitmap.getWidth() == width && bitmap.getHeight() == height
+                        && bitmap.getConfig() == config && value.isBitmapMutable()
+                        && !value.isBeingDisplayed()) {
+                    it.remove();
+                    if (bucket.isEmpty()) {
+                        mBuckets.remove(key);
+                    }
+                    mEntries.remove(value);
+                    mSize -= value.getMemorySize();
+                    mHitCount++;
+                    return value;
+                }
+            }
+        }
+
+        mMissCount++;
+        return null;
+    }
+
+    /**
+     * Removes the most recently added usable entry from the bucket for {@code key}. Any unusable
+     * entries found along the way are dropped.
+     */
+    private CacheableBitmapDrawable pollBucket(final Object key) {
+        final LinkedList<CacheableBitmapDrawable> bucket = mBuckets.get(key);
+        if (null == bucket) {
+            return null;
+        }
+
+        CacheableBitmapDrawable value = null;
+        while (null == value && !bucket.isEmpty()) {
+            final CacheableBitmapDrawable candidate = bucket.removeLast();
+            mEntries.remove(candidate);
+            mSize -= candidate.getMemorySize();
+
+            if (candidate.isBitmapValid() && candidate.isBitmapMutable()
+                    && !candidate.isBeingDisplayed()) {
+                value = candidate;
+            }
+        }
+
+        if (bucket.isEmpty()) {
+            mBuckets.remove(key);
+        }
+        return value;
+    }
+
+    /**
+     * Drops entries from the pool, oldest first, until the pool's size is at or below {@code
+     * maxSize}.
+     */
+    synchronized void trimToSize(final int maxSize) {
+        final Iterator<Map.Entry<CacheableBitmapDrawable, Object>> it = mEntries.entrySet()
+                .iterator();
+
+        while (mSize > maxSize && it.hasNext()) {
+            final Map.Entry<CacheableBitmapDrawable, Object> entry = it.next();
+            final CacheableBitmapDrawable value = entry.getKey();
+            final Object key = entry.getValue();
+            it.remove();
+
+            // The oldest entry overall is also the oldest in it's bucket
+            final LinkedList<CacheableBitmapDrawable> bucket = mBuckets.get(key);
+            bucket.removeFirst();
+            if (bucket.isEmpty()) {
+                mBuckets.remove(key);
+            }
+
+            mSize -= value.getMemorySize();
+            mEvictionCount++;
+        }
+    }
+
+    synchronized void evictAll() {
+        trimToSize(-1);
+    }
+
+    /**
+     * @return the number of bytes currently held by the pool.
+     */
+    synchronized int size() {
+        return mSize;
+    }
+
+    /**
+     * @return the maximum number of bytes the pool will hold.
+     */
+    int maxSize() {
+        return mMaxSize;
+    }
+
+    /**
+     * @return the number of times {@link #get(int, int, Bitmap.Config)} returned a Bitmap.
+     */
+    synchronized int hitCount() {
+        return mHitCount;
+    }
+
+    /**
+     * @return the number of times {@link #get(int, int, Bitmap.Config)} returned {@code null}.
+     */
+    synchronized int missCount() {
+        return mMissCount;
+    }
+
+    /**
+     * @return the number of entries which have been dropped to keep the pool within budget.
+     */
+    synchronized int evictionCount() {
+        return mEvictionCount;
+    }
+
+    /**
+     * @return the number of bytes used by each pixel of a Bitmap with {@code config}.
+     */
+    static int getBytesPerPixel(Bitmap.Config config) {
+        if (null == config) {
+            return 4;
+        }
+        switch (config) {
+            case ALPHA_8:
+                return 1;
+            case RGB_565:
+            case ARGB_4444:
+                return 2;
+            case ARGB_8888:
+            default:
+                return 4;
+        }
+    }
+
+    @Override
+    public synchronized String toString() {
+        final int accesses = mHitCount + mMissCount;
+        final int hitPercent = accesses != 0 ? (100 * mHitCount / accesses) : 0;
+        return String.format(
+                "BitmapReusePool[size=%d,maxSize=%d,hits=%d,misses=%d,hitRate=%d%%,evictions=%d]",
+                mSize, mMaxSize, mHitCount, mMissCount, hitPercent, mEvictionCount);
+    }
+
+    private static final class Key {
+        final int mWidth;
+        final int mHeight;
+        final Bitmap.Config mConfig;
+
+        Key(int width, int height, Bitmap.Config config) {
+            mWidth = width;
+            mHeight = height;
+            mConfig = config;
+        }
+
+        @Override
+        public boolean equals(Object o) {
+            if (this == o) {
+                return true;
+            }
+            if (!(o instanceof Key)) {
+                return false;
+            }
+            Key other = (Key) o;
+            return mWidth == other.mWidth && mHeight == other.mHeight
+                    && mConfig == other.mConfig;
+        }
+
+        @Override
+        public int hashCode() {
+            int result = mWidth;
+            result = 31 * result + mHeight;
+            result = 31 * result + (null != mConfig ? mConfig.hashCode() : 0);
+            return result;
+        }
+    }
+
+}
@@ -0,0 +1,66 @@
+/*******************************************************************************
+ * Copyright (c) 2013 Chris Banes.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ ******************************************************************************/
+package uk.co.senab.bitmapcache;
+
+import java.util.ArrayList;
+
+/**
+ * Small pool of byte arrays, all of the same size. Used so that buffers for I/O are not
+ * allocated (and later garbage collected) for every read.
+ */
+final class ByteArrayPool {
+
+    private final int mArraySize;
+    private final int mMaxCount;
+    private final ArrayList<byte[]> mArrays;
+
+    ByteArrayPool(int arraySize, int maxCount) {
+        mArraySize = arraySize;
+        mMaxCount = maxCount;
+        mArrays = new ArrayList<byte[]>(maxCount);
+    }
+
+    /**
+     * @return an array of {@link #getArraySize()} bytes. It's contents are undefined.
+     */
+    byte[] get() {
+        byte[] array;
+        synchronized (mArrays) {
+            final int count = mArrays.size();
+            array = count > 0 ? mArrays.remove(count - 1) : null;
+        }
+        return null != array ? array : new byte[mArraySize];
+    }
+
+    /**
+     * Returns {@code array} to the pool. It should not be used by the caller afterwards.
+     */
+    void put(byte[] array) {
+        if (null == array || array.length != mArraySize) {
+            return;
+        }
+        synchronized (mArrays) {
+            if (mArrays.size() < mMaxCount) {
+                mArrays.add(array);
+            }
+        }
+    }
+
+    int getArraySize() {
+        return mArraySize;
+    }
+
+}
@@ -0,0 +1,116 @@
+/*******************************************************************************
+ * Copyright (c) 2013 Chris Banes.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ ******************************************************************************/
+package uk.co.senab.bitmapcache;
+
+import java.io.InputStream;
+import java.nio.ByteBuffer;
+
+/**
+ * InputStream which reads the remaining bytes of a {@link ByteBuffer}, without copying them. The
+ * stream has it's own position, so the buffer given is not modified. Mark and reset are supported.
+ *
+ * <p> If the buffer wraps an array from a {@link ByteArrayPool}, the array is returned to the pool
+ * when the stream is closed. </p>
+ */
+final class ByteBufferInputStream extends InputStream {
+
+    private final ByteBuffer mBuffer;
+    private int mMark;
+
+    // Pool which the buffer's array is returned to on close. May be null.
+    private ByteArrayPool mPool;
+
+    ByteBufferInputStream(ByteBuffer buffer) {
+        this(buffer, null);
+    }
+
+    ByteBufferInputStream(ByteBuffer buffer, ByteArrayPool pool) {
+        mBuffer = buffer.duplicate();
+        mMark = mBuffer.position();
+        mPool = pool;
+    }
+
+    @Override
+    public int read() {
+        return mBuffer.hasRemaining() ? (mBuffer.get() & 0xFF) : -1;
+    }
+
+    @Override
+    public int read(byte[] buffer, int offset, int length) {
+        if (length == 0) {
+            return 0;
+        }
+        if (!mBuffer.hasRemaining()) {
+            return -1;
+        }
+
+        final int count = Math.min(length, mBuffer.remaining());
+        mBuffer.get(buffer, offset, count);
+        return count;
+    }
+
+    @Override
+    public long skip(long count) {
+        if (count <= 0) {
+            return 0;
+        }
+
+        final int skipped = (int) Math.min(count, mBuffer.remaining());
+        mBuffer.position(mBuffer.position() + skipped);
+        return skipped;
+    }
+
+    /**
+     * @return a view of the bytes which have not been read yet. Reading from it does not move
+     *         this stream.
+     */
+    ByteBuffer remaining() {
+        return mBuffer.slice();
+    }
+
+    @Override
+    public int available() {
+        return mBuffer.remaining();
+    }
+
+    @Override
+    public void close() {
+        final ByteArrayPool pool;
+        synchronized (this) {
+            pool = mPool;
+            mPool = null;
+        }
+        if (null != pool) {
+            pool.put(mBuffer.array());
+        }
+    }
+
+    @Override
+    public boolean markSupported() {
+        return true;
+    }
+
+    @Override
+    public synchronized void mark(int readLimit) {
+        mMark = mBuffer.position();
+    }
+
+    @Override
+    public synchronized void reset() {
+        mBuffer.position(mMark);
+    }
+
+}
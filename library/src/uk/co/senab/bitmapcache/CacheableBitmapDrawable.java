@@ -29,11 +29,12 @@ public class CacheableBitmapDrawable extends BitmapDrawable {
     public static final int SOURCE_UNKNOWN = -1;
     public static final int SOURCE_NEW = 0;
     public static final int SOURCE_INBITMAP = 1;
+    public static final int SOURCE_DOWNSAMPLED = 2;
 
     static final String LOG_TAG = "CacheableBitmapDrawable";
 
-    // URL Associated with this Bitmap
-    private final String mUrl;
+    // URL, and the options the Bitmap was decoded with
+    private final MemoryKey mKey;
 
     private BitmapLruCache.RecyclePolicy mRecyclePolicy;
 
@@ -57,15 +58,35 @@ public class CacheableBitmapDrawable extends BitmapDrawable {
 
     private final int mMemorySize;
 
+    private final Bitmap.Config mConfig;
+
     private final int mSource;
 
-    CacheableBitmapDrawable(String url, Resources resources, Bitmap bitmap,
-            BitmapLruCache.RecyclePolicy recyclePolicy, int source) {
+    // Tracks this drawable while it is being displayed. May be null.
+    private final ActiveResources mActiveResources;
+
+    CacheableBitmapDrawable(MemoryKey key, Resources resources, Bitmap bitmap,
+            BitmapLruCache.RecyclePolicy recyclePolicy, int source,
+            ActiveResources activeResources) {
+        this(key, resources, bitmap, recyclePolicy, source, activeResources,
+                null != bitmap ? (bitmap.getRowBytes() * bitmap.getHeight()) : 0);
+    }
+
+    /**
+     * @param memorySize the number of bytes allocated for {@code bitmap}. From KitKat this can be
+     *                   larger than the Bitmap's pixels need when it was decoded into a re-used
+     *                   Bitmap.
+     */
+    CacheableBitmapDrawable(MemoryKey key, Resources resources, Bitmap bitmap,
+            BitmapLruCache.RecyclePolicy recyclePolicy, int source,
+            ActiveResources activeResources, int memorySize) {
         super(resources, bitmap);
 
-        mMemorySize = null != bitmap ? (bitmap.getRowBytes() * bitmap.getHeight()) : 0;
-        mUrl = url;
+        mMemorySize = memorySize;
+        mConfig = null != bitmap ? bitmap.getConfig() : null;
+        mKey = key;
         mRecyclePolicy = recyclePolicy;
+        mActiveResources = activeResources;
         mDisplayingCount = 0;
         mCacheCount = 0;
         mSource = source;
@@ -88,7 +109,7 @@ public class CacheableBitmapDrawable extends BitmapDrawable {
     }
 
     /**
-     * @return Amount of memory currently being used by {@code Bitmap}
+     * @return Amount of memory currently allocated for the {@code Bitmap}
      */
     int getMemorySize() {
        return mMemorySize;
@@ -98,12 +119,27 @@ public class CacheableBitmapDrawable extends BitmapDrawable {
      * @return the URL associated with the BitmapDrawable
      */
     public String getUrl() {
-        return mUrl;
+        return mKey.mUrl;
     }
 
     /**
-     * @return One of {@link #SOURCE_NEW}, {@link #SOURCE_INBITMAP} or {@link #SOURCE_UNKNOWN}
-     * depending on how this Bitmap was created.
+     * @return the {@link Bitmap.Config} which the Bitmap was decoded with. This may differ from
+     *         the requested config, depending on the {@link BitmapLruCache.DecodeConfigPolicy}.
+     */
+    public Bitmap.Config getConfig() {
+        return mConfig;
+    }
+
+    /**
+     * @return the key used for this drawable in the memory cache.
+     */
+    MemoryKey getMemoryKey() {
+        return mKey;
+    }
+
+    /**
+     * @return One of {@link #SOURCE_NEW}, {@link #SOURCE_INBITMAP}, {@link #SOURCE_DOWNSAMPLED} or
+     * {@link #SOURCE_UNKNOWN} depending on how this Bitmap was created.
      */
     public int getSource() {
         return mSource;
@@ -143,14 +179,27 @@ public class CacheableBitmapDrawable extends BitmapDrawable {
      *
      * @param beingUsed - true if being used, false if not.
      */
-    public synchronized void setBeingUsed(boolean beingUsed) {
-        if (beingUsed) {
-            mDisplayingCount++;
-            mHasBeenDisplayed = true;
-        } else {
-            mDisplayingCount--;
+    public void setBeingUsed(boolean beingUsed) {
+        final int displayingCount;
+        synchronized (this) {
+            if (beingUsed) {
+                mDisplayingCount++;
+                mHasBeenDisplayed = true;
+            } else {
+                mDisplayingCount--;
+            }
+            checkState();
+            displayingCount = mDisplayingCount;
+        }
+
+        // Called outside of the lock, as the active resources may call back into the caches
+        if (null != mActiveResources) {
+            if (beingUsed && displayingCount == 1) {
+                mActiveResources.activate(this);
+            } else if (!beingUsed && displayingCount == 0) {
+                mActiveResources.deactivate(this);
+            }
         }
-        checkState();
     }
 
     /**
@@ -170,7 +219,7 @@ public class CacheableBitmapDrawable extends BitmapDrawable {
     private void cancelCheckStateCallback() {
         if (null != mCheckStateRunnable) {
             if (Constants.DEBUG) {
-                Log.d(LOG_TAG, "Cancelling checkState() callback for: " + mUrl);
+                Log.d(LOG_TAG, "Cancelling checkState() callback for: " + getUrl());
             }
             sHandler.removeCallbacks(mCheckStateRunnable);
             mCheckStateRunnable = null;
@@ -202,7 +251,7 @@ public class CacheableBitmapDrawable extends BitmapDrawable {
         if (Constants.DEBUG) {
             Log.d(LOG_TAG, String.format(
                     "checkState(). Been Displayed: %b, Displaying: %d, Caching: %d, URL: %s",
-                    mHasBeenDisplayed, mDisplayingCount, mCacheCount, mUrl));
+                    mHasBeenDisplayed, mDisplayingCount, mCacheCount, getUrl()));
         }
 
         // If the policy doesn't let us recycle, return now
@@ -222,7 +271,7 @@ public class CacheableBitmapDrawable extends BitmapDrawable {
              */
             if (mHasBeenDisplayed || ignoreBeenDisplayed) {
                 if (Constants.DEBUG) {
-                    Log.d(LOG_TAG, "Recycling bitmap with url: " + mUrl);
+                    Log.d(LOG_TAG, "Recycling bitmap with url: " + getUrl());
                 }
                 // Record the current method stack just in case
                 mStackTraceWhenRecycled = new Throwable("Recycled Bitmap Method Stack");
@@ -232,7 +281,7 @@ public class CacheableBitmapDrawable extends BitmapDrawable {
                 if (Constants.DEBUG) {
                     Log.d(LOG_TAG,
                             "Unused Bitmap which hasn't been displayed, delaying recycle(): "
-                                    + mUrl);
+                                    + getUrl());
                 }
                 mCheckStateRunnable = new CheckStateRunnable(this);
                 sHandler.postDelayed(mCheckStateRunnable,
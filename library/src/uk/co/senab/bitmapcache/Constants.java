@@ -23,4 +23,7 @@ class Constants {
 
     static final int UNUSED_DRAWABLE_RECYCLE_DELAY_MS = 2000;
 
+    // Build.VERSION_CODES.KITKAT, which isn't available in the SDK we compile against
+    static final int SDK_KITKAT = 19;
+
 }
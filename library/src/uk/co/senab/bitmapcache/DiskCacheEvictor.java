@@ -0,0 +1,209 @@
+/*******************************************************************************
+ * Copyright (c) 2013 Chris Banes.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ ******************************************************************************/
+package uk.co.senab.bitmapcache;
+
+import java.util.Comparator;
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.TreeSet;
+
+/**
+ * Chooses which entries a {@link DiskCacheStorage} evicts once it is over it's maximum size. The
+ * storage tells it about every entry which is added, read or removed, and asks it for victims.
+ *
+ * <p> This class is not synchronized, as it is only called while holding the storage's lock.
+ * </p>
+ */
+abstract class DiskCacheEvictor {
+
+    static DiskCacheEvictor create(BitmapLruCache.DiskCacheEvictionPolicy policy) {
+        switch (policy) {
+            case GREEDY_DUAL_SIZE_FREQUENCY:
+                return new GreedyDualSizeFrequency();
+            case LRU:
+            default:
+                return new Lru();
+        }
+    }
+
+    /**
+     * Called when an entry is added, or replaced by a new version.
+     *
+     * @param size     - Number of bytes used to store the entry.
+     * @param metadata - The entry's metadata record (see {@link DiskCacheMetadata}).
+     */
+    abstract void onAdd(String key, long size, String metadata);
+
+    /**
+     * Called when an entry is read.
+     */
+    abstract void onAccess(String key);
+
+    /**
+     * Called when an entry is removed, other than by {@link #evict(String)}.
+     */
+    abstract void onRemove(String key);
+
+    /**
+     * Chooses an entry to evict, and forgets about it.
+     *
+     * @param keep - Key which must not be chosen, such as the entry which was just added.
+     * @return the key of the entry to evict, or {@code null} if there is none.
+     */
+    abstract String evict(String keep);
+
+    /**
+     * Evicts the least recently used entry.
+     */
+    static final class Lru extends DiskCacheEvictor {
+        // Values are unused, the map is just kept in access order
+        private final LinkedHashMap<String, Boolean> mKeys
+                = new LinkedHashMap<String, Boolean>(0, 0.75f, true);
+
+        @Override
+        void onAdd(String key, long size, String metadata) {
+            // A replaced entry counts as newly used
+            mKeys.remove(key);
+            mKeys.put(key, Boolean.TRUE);
+        }
+
+        @Override
+        void onAccess(String key) {
+            mKeys.get(key);
+        }
+
+        @Override
+        void onRemove(String key) {
+            mKeys.remove(key);
+        }
+
+        @Override
+        String evict(String keep) {
+            final Iterator<String> it = mKeys.keySet().iterator();
+            while (it.hasNext()) {
+                final String key = it.next();
+                if (!key.equals(keep)) {
+                    it.remove();
+                    return key;
+                }
+            }
+            return null;
+        }
+    }
+
+    /**
+     * GreedyDual-Size-Frequency. Each entry is given a priority of {@code L + frequency * cost /
+     * size}, and the entry with the lowest priority is evicted. The cost is the time it took to
+     * fetch the entry, so that large images which were quick to fetch go before small ones which
+     * are read often and were slow to fetch.
+     *
+     * <p> {@code L} is raised to the priority of each evicted entry. An entry's priority is only
+     * recalculated when it is used, so entries which have not been used for a while age out, even
+     * if they were once popular. Frequencies are not stored, so start again from 1 when the cache
+     * is opened. </p>
+     */
+    static final class GreedyDualSizeFrequency extends DiskCacheEvictor {
+
+        private static final class Node {
+            final String mKey;
+            long mSize;
+            long mCost;
+            int mFrequency;
+            double mPriority;
+            long mSequence;
+
+            Node(String key) {
+                mKey = key;
+            }
+        }
+
+        // Lowest priority first, and oldest first for equal priorities
+        private static final Comparator<Node> PRIORITY_ORDER = new Comparator<Node>() {
+            @Override
+            public int compare(Node lhs, Node rhs) {
+                if (lhs.mPriority != rhs.mPriority) {
+                    return lhs.mPriority < rhs.mPriority ? -1 : 1;
+                }
+                return lhs.mSequence < rhs.mSequence ? -1 : (lhs.mSequence == rhs.mSequence ? 0
+                        : 1);
+            }
+        };
+
+        private final HashMap<String, Node> mNodes = new HashMap<String, Node>();
+        private final TreeSet<Node> mQueue = new TreeSet<Node>(PRIORITY_ORDER);
+
+        private double mInflation;
+        private long mSequence;
+
+        @Override
+        void onAdd(String key, long size, String metadata) {
+            Node node = mNodes.get(key);
+            if (null != node) {
+                // A replacement, which usually follows a use of the entry
+                mQueue.remove(node);
+                node.mFrequency++;
+            } else {
+                node = new Node(key);
+                node.mFrequency = 1;
+                mNodes.put(key, node);
+            }
+
+            node.mSize = Math.max(1, size);
+            // Entries with no recorded fetch time still have some cost
+            node.mCost = 1 + DiskCacheMetadata.decodeFetchTime(metadata);
+            enqueue(node);
+        }
+
+        @Override
+        void onAccess(String key) {
+            final Node node = mNodes.get(key);
+            if (null != node) {
+                mQueue.remove(node);
+                node.mFrequency++;
+                enqueue(node);
+            }
+        }
+
+        @Override
+        void onRemove(String key) {
+            final Node node = mNodes.remove(key);
+            if (null != node) {
+                mQueue.remove(node);
+            }
+        }
+
+        @Override
+        String evict(String keep) {
+            for (Node node : mQueue) {
+                if (!node.mKey.equals(keep)) {
+                    mQueue.remove(node);
+                    mNodes.remove(node.mKey);
+                    mInflation = node.mPriority;
+                    return node.mKey;
+                }
+            }
+            return null;
+        }
+
+        private void enqueue(Node node) {
+            node.mPriority = mInflation + node.mFrequency * (double) node.mCost / node.mSize;
+            node.mSequence = mSequence++;
+            mQueue.add(node);
+        }
+    }
+
+}
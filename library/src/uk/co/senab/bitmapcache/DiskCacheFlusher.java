@@ -0,0 +1,150 @@
+/*******************************************************************************
+ * Copyright (c) 2013 Chris Banes.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ ******************************************************************************/
+package uk.co.senab.bitmapcache;
+
+import android.os.Process;
+import android.os.SystemClock;
+import android.util.Log;
+
+import java.io.IOException;
+import java.util.concurrent.ScheduledThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Flushes the disk cache's journal in batches. Writes are counted as they happen, and a flush
+ * runs once enough writes or bytes have built up, or once the oldest unflushed write has waited
+ * for the maximum delay, whichever comes first.
+ *
+ * <p> Only one delayed flush is scheduled per batch, rather than one for every write. This also
+ * means that a steady stream of writes can not put the flush off forever. </p>
+ */
+final class DiskCacheFlusher implements Runnable {
+
+    private final DiskCacheStorage mDiskCache;
+    private final ScheduledThreadPoolExecutor mExecutor;
+
+    private final int mMaxDirtyCount;
+    private final long mMaxDirtyBytes;
+    private final long mMaxDelayMs;
+
+    // Writes since the last flush
+    private int mDirtyCount;
+    private long mDirtyBytes;
+
+    private boolean mDelayedFlushScheduled;
+    private boolean mFlushQueued;
+
+    private int mFlushCount;
+    private long mFlushedWriteCount;
+    private long mTotalFlushTime;
+
+    DiskCacheFlusher(DiskCacheStorage diskCache, int maxDirtyCount, long maxDirtyBytes,
+            long maxDelayMs) {
+        mDiskCache = diskCache;
+        mExecutor = new ScheduledThreadPoolExecutor(1);
+        mMaxDirtyCount = maxDirtyCount;
+        mMaxDirtyBytes = maxDirtyBytes;
+        mMaxDelayMs = maxDelayMs;
+    }
+
+    /**
+     * Records an edit of the disk cache, scheduling a flush if needed.
+     *
+     * @param bytes - Number of bytes written, which may be 0 for removals.
+     */
+    void onWrite(long bytes) {
+        boolean flushNow = false, flushLater = false;
+
+        synchronized (this) {
+            mDirtyCount++;
+            mDirtyBytes += bytes;
+
+            if (mDirtyCount >= mMaxDirtyCount || mDirtyBytes >= mMaxDirtyBytes) {
+                if (!mFlushQueued) {
+                    mFlushQueued = flushNow = true;
+                }
+            } else if (!mDelayedFlushScheduled) {
+                mDelayedFlushScheduled = flushLater = true;
+            }
+        }
+
+        if (flushNow) {
+            mExecutor.execute(this);
+        } else if (flushLater) {
+            mExecutor.schedule(this, mMaxDelayMs, TimeUnit.MILLISECONDS);
+        }
+    }
+
+    public void run() {
+        // Make sure we're running with a background priority
+        Process.setThreadPriority(Process.THREAD_PRIORITY_BACKGROUND);
+
+        final int writes;
+        synchronized (this) {
+            writes = mDirtyCount;
+            mDirtyCount = 0;
+            mDirtyBytes = 0;
+            // The next write starts a new batch. A delayed flush which is still scheduled for
+            // this batch will just flush the next one a bit early.
+            mDelayedFlushScheduled = false;
+            mFlushQueued = false;
+        }
+
+        if (writes == 0) {
+            return;
+        }
+
+        if (Constants.DEBUG) {
+            Log.d(Constants.LOG_TAG, "Flushing Disk Cache after " + writes + " writes");
+        }
+
+        final long startTime = SystemClock.elapsedRealtime();
+        try {
+            mDiskCache.flush();
+        } catch (IOException e) {
+            e.printStackTrace();
+        }
+        final long flushTime = SystemClock.elapsedRealtime() - startTime;
+
+        synchronized (this) {
+            mFlushCount++;
+            mFlushedWriteCount += writes;
+            mTotalFlushTime += flushTime;
+        }
+    }
+
+    /**
+     * @return the number of flushes which have run.
+     */
+    synchronized int getFlushCount() {
+        return mFlushCount;
+    }
+
+    /**
+     * @return the average number of writes included in each flush, or 0 if none have run.
+     */
+    synchronized float getAverageWritesPerFlush() {
+        return mFlushCount > 0 ? (float) mFlushedWriteCount / mFlushCount : 0f;
+    }
+
+    /**
+     * @return the average time each flush took in milliseconds, or 0 if none have run.
+     */
+    synchronized float getAverageFlushTime() {
+        return mFlushCount > 0 ? (float) mTotalFlushTime / mFlushCount : 0f;
+    }
+
+}
@@ -0,0 +1,121 @@
+/*******************************************************************************
+ * Copyright (c) 2013 Chris Banes.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ ******************************************************************************/
+package uk.co.senab.bitmapcache;
+
+import android.util.Log;
+
+/**
+ * Each disk cache entry has a small metadata record alongside the image contents, holding the
+ * image's type, dimensions and whether it may have alpha. This means that a disk hit can size
+ * and configure it's decode without reading the image header first. The record also holds how
+ * long the image took to fetch, if known, which is used as it's cost when choosing what to
+ * evict.
+ *
+ * <p> With DiskLruCache, the records are kept in a {@link DiskCacheMetadataIndex} rather than as
+ * a second value, so that a disk hit only opens one file. Caches which were created before the
+ * metadata existed open as they are, and each entry's record is filled in the first time it is
+ * read. </p>
+ */
+final class DiskCacheMetadata {
+
+    // The same as caches which were created before the metadata existed
+    static final int APP_VERSION = 0;
+    static final int VALUE_COUNT = 1;
+
+    static final int INDEX_IMAGE = 0;
+
+    // Version of the record format
+    private static final String RECORD_VERSION = "2";
+
+    private DiskCacheMetadata() {
+    }
+
+    /**
+     * @return the metadata record for {@code info}, with no fetch time. This is empty if {@code
+     *         info} is null.
+     */
+    static String encode(ImageHeaderParser.ImageInfo info) {
+        return encode(info, 0);
+    }
+
+    /**
+     * @param fetchTime - Time in milliseconds which the image took to fetch, or 0 if unknown.
+     * @return the metadata record for {@code info}. This is empty if {@code info} is null.
+     */
+    static String encode(ImageHeaderParser.ImageInfo info, long fetchTime) {
+        if (null == info) {
+            return "";
+        }
+        return RECORD_VERSION + " " + info.mType.name() + " " + info.mWidth + " " + info.mHeight
+                + " " + (info.mHasAlpha ? 1 : 0) + " " + Math.max(0, fetchTime);
+    }
+
+    /**
+     * @return the info held in {@code record}, or {@code null} if the record is empty or can not
+     *         be read.
+     */
+    static ImageHeaderParser.ImageInfo decode(String record) {
+        if (null == record || record.length() == 0) {
+            return null;
+        }
+
+        final String[] parts = split(record);
+        if (null == parts) {
+            return null;
+        }
+
+        try {
+            return new ImageHeaderParser.ImageInfo(ImageHeaderParser.ImageType.valueOf(parts[1]),
+                    Integer.parseInt(parts[2]), Integer.parseInt(parts[3]), "1".equals(parts[4]));
+        } catch (IllegalArgumentException e) {
+            // Includes NumberFormatException
+            Log.w(Constants.LOG_TAG, "Invalid disk cache metadata: " + record);
+            return null;
+        }
+    }
+
+    /**
+     * @return the fetch time in milliseconds held in {@code record}, or 0 if there is none.
+     */
+    static long decodeFetchTime(String record) {
+        if (null == record || record.length() == 0) {
+            return 0;
+        }
+
+        final String[] parts = split(record);
+        if (null == parts) {
+            return 0;
+        }
+
+        try {
+            return Math.max(0, Long.parseLong(parts[5]));
+        } catch (NumberFormatException e) {
+            return 0;
+        }
+    }
+
+    /**
+     * @return the fields of {@code record}, or {@code null} if it is not a known version.
+     */
+    private static String[] split(String record) {
+        final String[] parts = record.trim().split(" ");
+        if (parts.length == 6 && RECORD_VERSION.equals(parts[0])) {
+            return parts;
+        }
+        return null;
+    }
+
+}
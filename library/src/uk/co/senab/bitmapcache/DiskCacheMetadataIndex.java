@@ -0,0 +1,263 @@
+/*******************************************************************************
+ * Copyright (c) 2013 Chris Banes.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ ******************************************************************************/
+package uk.co.senab.bitmapcache;
+
+import android.util.Log;
+
+import java.io.BufferedReader;
+import java.io.BufferedWriter;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileNotFoundException;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InputStreamReader;
+import java.io.OutputStreamWriter;
+import java.io.Writer;
+import java.util.Iterator;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+
+/**
+ * Side index of the metadata records of a {@link com.jakewharton.disklrucache.DiskLruCache}'s
+ * entries (see {@link DiskCacheMetadata}). Keeping them out of the cache itself means that a disk
+ * hit only opens the image file, and the records are looked up from memory.
+ *
+ * <p> The records are held in memory, and changes are appended to a log file in the cache's
+ * directory, which is read when the index is opened. The log is rewritten once it is mostly
+ * out of date lines. </p>
+ *
+ * <p> The index is updated separately from the cache, so each record holds the length of the
+ * image it describes, and is ignored for an image of any other length. This means a reader which
+ * sees a new image before it's record just parses the image header again, rather than decoding
+ * it with the previous image's record. DiskLruCache evicts entries without telling us, so a
+ * record may also outlive it's entry. Records for entries which no longer exist are dropped when
+ * the log is rewritten. </p>
+ */
+final class DiskCacheMetadataIndex {
+
+    static final String FILE_NAME = "metadata";
+    private static final String FILE_NAME_TEMP = "metadata.tmp";
+
+    private static final String SET = "SET ";
+    private static final String REMOVE = "REMOVE ";
+
+    // The log is rewritten once it has this many lines, and at least twice as many as records
+    private static final int COMPACT_MIN_LINES = 1024;
+
+    /**
+     * Opens the index in {@code directory}, which should be the directory of the DiskLruCache
+     * which it describes.
+     */
+    static DiskCacheMetadataIndex open(File directory) throws IOException {
+        final DiskCacheMetadataIndex index = new DiskCacheMetadataIndex(directory);
+        index.load();
+        index.openWriter(true);
+        return index;
+    }
+
+    private final File mDirectory;
+    private final File mFile;
+
+    private static final class Record {
+        final long mImageLength;
+        final String mMetadata;
+
+        Record(long imageLength, String metadata) {
+            mImageLength = imageLength;
+            mMetadata = metadata;
+        }
+
+        String toLine(String key) {
+            return SET + key + " " + mImageLength + " " + mMetadata;
+        }
+    }
+
+    private final ConcurrentHashMap<String, Record> mRecords;
+
+    // Guarded by this
+    private Writer mWriter;
+    private int mLineCount;
+
+    private DiskCacheMetadataIndex(File directory) {
+        mDirectory = directory;
+        mFile = new File(directory, FILE_NAME);
+        mRecords = new ConcurrentHashMap<String, Record>();
+    }
+
+    /**
+     * @param imageLength - Length of the entry's current image, in bytes.
+     * @return the metadata for {@code key}, or {@code null} if there is none for an image of
+     *         {@code imageLength} bytes.
+     */
+    String get(String key, long imageLength) {
+        final Record record = mRecords.get(key);
+        return null != record && record.mImageLength == imageLength ? record.mMetadata : null;
+    }
+
+    /**
+     * Stores the metadata of the image which was just committed for {@code key}.
+     *
+     * @param imageLength - Length of the image, in bytes.
+     */
+    synchronized void put(String key, long imageLength, String metadata) throws IOException {
+        if (metadata.indexOf('\n') >= 0) {
+            throw new IllegalArgumentException("Metadata can not contain a new line");
+        }
+
+        final Record previous = mRecords.get(key);
+        if (null != previous && previous.mImageLength == imageLength
+                && previous.mMetadata.equals(metadata)) {
+            return;
+        }
+
+        final Record record = new Record(imageLength, metadata);
+        mRecords.put(key, record);
+        writeLine(record.toLine(key));
+    }
+
+    /**
+     * Stores metadata which was parsed from the image of {@code key}, unless the image already
+     * has a record. This keeps a record written with a newer image of the same length, which may
+     * hold more, such as the fetch time.
+     *
+     * @param imageLength - Length of the image which was parsed, in bytes.
+     */
+    synchronized void fill(String key, long imageLength, String metadata) throws IOException {
+        if (null == get(key, imageLength)) {
+            put(key, imageLength, metadata);
+        }
+    }
+
+    synchronized void remove(String key) throws IOException {
+        if (null != mRecords.remove(key)) {
+            writeLine(REMOVE + key);
+        }
+    }
+
+    /**
+     * Writes any buffered changes to the log, and rewrites the log if it is mostly out of date.
+     *
+     * @param imageIndex - Value index of the image in the DiskLruCache, used to check which
+     *                   entries still exist when the log is rewritten.
+     */
+    synchronized void flush(int imageIndex) throws IOException {
+        mWriter.flush();
+
+        if (mLineCount >= COMPACT_MIN_LINES && mLineCount >= mRecords.size() * 2) {
+            compact(imageIndex);
+        }
+    }
+
+    synchronized void close() throws IOException {
+        mWriter.close();
+    }
+
+    private void writeLine(String line) throws IOException {
+        mWriter.write(line);
+        mWriter.write('\n');
+        mLineCount++;
+    }
+
+    private void load() throws IOException {
+        final BufferedReader reader;
+        try {
+            reader = new BufferedReader(
+                    new InputStreamReader(new FileInputStream(mFile), "US-ASCII"));
+        } catch (FileNotFoundException e) {
+            return;
+        }
+
+        try {
+            String line;
+            while (null != (line = reader.readLine())) {
+                mLineCount++;
+                if (line.startsWith(SET)) {
+                    final int keyEnd = line.indexOf(' ', SET.length());
+                    final int lengthEnd = keyEnd > 0 ? line.indexOf(' ', keyEnd + 1) : -1;
+                    if (lengthEnd > 0) {
+                        try {
+                            mRecords.put(line.substring(SET.length(), keyEnd), new Record(
+                                    Long.parseLong(line.substring(keyEnd + 1, lengthEnd)),
+                                    line.substring(lengthEnd + 1)));
+                        } catch (NumberFormatException e) {
+                            // Damaged line, so the image header will be parsed instead
+                        }
+                    }
+                } else if (line.startsWith(REMOVE)) {
+                    mRecords.remove(line.substring(REMOVE.length()));
+                }
+            }
+        } finally {
+            try {
+                reader.close();
+            } catch (IOException e) {
+                // Ignore
+            }
+        }
+
+        if (Constants.DEBUG) {
+            Log.d(Constants.LOG_TAG, "Loaded " + mRecords.size() + " disk cache metadata records");
+        }
+    }
+
+    private void openWriter(boolean append) throws IOException {
+        mWriter = new BufferedWriter(
+                new OutputStreamWriter(new FileOutputStream(mFile, append), "US-ASCII"));
+    }
+
+    /**
+     * Rewrites the log with just the records of images which still exist. Must be called while
+     * holding this object's lock.
+     */
+    private void compact(int imageIndex) throws IOException {
+        mWriter.close();
+
+        final File temp = new File(mDirectory, FILE_NAME_TEMP);
+        final Writer writer = new BufferedWriter(
+                new OutputStreamWriter(new FileOutputStream(temp), "US-ASCII"));
+
+        int lines = 0;
+        try {
+            final Iterator<Map.Entry<String, Record>> it = mRecords.entrySet().iterator();
+            while (it.hasNext()) {
+                final Map.Entry<String, Record> entry = it.next();
+                final File image = new File(mDirectory, entry.getKey() + "." + imageIndex);
+                if (image.length() != entry.getValue().mImageLength) {
+                    // Evicted by DiskLruCache, or replaced by an image with no record yet
+                    it.remove();
+                    continue;
+                }
+                writer.write(entry.getValue().toLine(entry.getKey()));
+                writer.write('\n');
+                lines++;
+            }
+        } finally {
+            writer.close();
+        }
+
+        if (!temp.renameTo(mFile)) {
+            // Keep appending to the old log, which is still correct
+            temp.delete();
+            openWriter(true);
+            throw new IOException("Unable to replace " + mFile);
+        }
+
+        mLineCount = lines;
+        openWriter(true);
+    }
+
+}
@@ -0,0 +1,105 @@
+/*******************************************************************************
+ * Copyright (c) 2013 Chris Banes.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ ******************************************************************************/
+package uk.co.senab.bitmapcache;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+
+/**
+ * Storage engine behind the disk cache. Each entry is stored under a key, and holds the image
+ * contents along with it's metadata record (see {@link DiskCacheMetadata}). Implementations must
+ * be thread safe, and evict entries themselves to stay within their maximum size.
+ */
+interface DiskCacheStorage {
+
+    /**
+     * A read-only view of an entry, as it was when it was returned from {@link #get(String)}.
+     */
+    interface Snapshot {
+        /**
+         * @return the entry's metadata record, which may be empty.
+         */
+        String getMetadata() throws IOException;
+
+        /**
+         * Opens the image contents. This may only be called once, and closing the returned stream
+         * also closes the snapshot.
+         */
+        InputStream openImage() throws IOException;
+
+        /**
+         * Releases the snapshot, if the image has not been opened.
+         */
+        void close();
+
+        /**
+         * Stores {@code metadata} which was parsed from the image, for an entry which had no
+         * record. Nothing is stored if the entry has since been replaced or given a record. This
+         * may be called after the image has been opened.
+         */
+        void fillMetadata(String metadata) throws IOException;
+    }
+
+    /**
+     * Edits an entry. Nothing is visible to readers until {@link #commit()}, and an image must be
+     * written before then.
+     */
+    interface Editor {
+        OutputStream newImageOutputStream() throws IOException;
+
+        void setMetadata(String metadata) throws IOException;
+
+        void commit() throws IOException;
+
+        /**
+         * Aborts the edit, unless it has already been committed. Safe to call in a finally block.
+         */
+        void abortUnlessCommitted();
+    }
+
+    /**
+     * @return a snapshot of the entry for {@code key}, or {@code null} if there is none.
+     */
+    Snapshot get(String key) throws IOException;
+
+    /**
+     * @return an editor for the entry with {@code key}, or {@code null} if it is already being
+     *         edited.
+     */
+    Editor edit(String key) throws IOException;
+
+    /**
+     * @return true if an entry was removed.
+     */
+    boolean remove(String key) throws IOException;
+
+    /**
+     * Makes sure that every committed edit will be seen when the storage is next opened.
+     */
+    void flush() throws IOException;
+
+    /**
+     * @return the number of bytes used to store the entries.
+     */
+    long size();
+
+    /**
+     * Releases the storage's files and threads. It can not be used afterwards.
+     */
+    void close() throws IOException;
+
+}
@@ -0,0 +1,213 @@
+/*******************************************************************************
+ * Copyright (c) 2013 Chris Banes.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ ******************************************************************************/
+package uk.co.senab.bitmapcache;
+
+import android.os.Process;
+import android.util.Log;
+
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+
+/**
+ * Bounded queue of disk cache writes, which are performed in order on a single background thread.
+ *
+ * <ul> <li>Writes are keyed by disk cache key. If a write is queued for a key which already has
+ * one waiting, the newer write replaces the older one.</li> <li>When the queue is full, new writes
+ * are dropped. {@link #enqueue(String, Task)} never blocks, as it may be called from the main
+ * thread, and a missed disk cache write only costs a later re-fetch.</li> <li>{@link #flush()}
+ * waits until every write queued before it was called has finished. Each place in the queue is
+ * given a sequence number, which a replacing write keeps, so it only waits for a fixed set of
+ * places however many writes are queued after it.</li> </ul>
+ */
+final class DiskWriteQueue {
+
+    /**
+     * A queued write. Exactly one of {@link #run()} or {@link #onDiscarded()} is called.
+     */
+    abstract static class Task implements Runnable {
+        // Sequence number of the task's place in the queue, guarded by the queue
+        long mSequence;
+
+        /**
+         * Called instead of {@link #run()} if this write was replaced, cancelled or dropped.
+         */
+        void onDiscarded() {
+        }
+    }
+
+    private final LinkedHashMap<String, Task> mPending;
+    private final int mMaxPending;
+    private final ExecutorService mExecutor;
+
+    // Whether a drain is currently submitted to mExecutor
+    private boolean mDraining;
+    private int mRunningCount;
+
+    private long mLastSequence;
+    // Sequence number of the running write, or 0 if there is none
+    private long mRunningSequence;
+
+    private int mCoalescedCount;
+    private int mDroppedCount;
+
+    DiskWriteQueue(int maxPending) {
+        mPending = new LinkedHashMap<String, Task>();
+        mMaxPending = maxPending;
+        mExecutor = Executors.newSingleThreadExecutor();
+    }
+
+    /**
+     * Queues {@code task} as the write for {@code key}, replacing any write for {@code key} which
+     * is still waiting. If the queue is full, {@code task} is discarded instead.
+     */
+    void enqueue(String key, Task task) {
+        final Task discarded;
+
+        synchronized (this) {
+            if (!mPending.containsKey(key) && mPending.size() >= mMaxPending) {
+                discarded = task;
+                mDroppedCount++;
+            } else {
+                // A replaced write keeps it's place in the queue
+                discarded = mPending.put(key, task);
+                if (null != discarded) {
+                    task.mSequence = discarded.mSequence;
+                    mCoalescedCount++;
+                } else {
+                    task.mSequence = ++mLastSequence;
+                }
+
+                if (!mDraining) {
+                    mDraining = true;
+                    mExecutor.execute(mDrainRunnable);
+                }
+            }
+        }
+
+        if (null != discarded) {
+            discarded.onDiscarded();
+        }
+    }
+
+    /**
+     * Removes the write for {@code key} if it has not started yet.
+     */
+    void cancel(String key) {
+        final Task task;
+        synchronized (this) {
+            task = mPending.remove(key);
+            notifyAll();
+        }
+
+        if (null != task) {
+            task.onDiscarded();
+        }
+    }
+
+    /**
+     * Blocks until every write queued before this call has finished. Must not be called from a
+     * queued write.
+     */
+    synchronized void flush() {
+        final long sequence = mLastSequence;
+        boolean interrupted = false;
+        while (isQueuedOrRunning(sequence)) {
+            try {
+                wait();
+            } catch (InterruptedException e) {
+                interrupted = true;
+            }
+        }
+        if (interrupted) {
+            Thread.currentThread().interrupt();
+        }
+    }
+
+    /**
+     * @return true if a write with a sequence number up to {@code sequence} is queued or running.
+     *         Writes are run in sequence order, so only the oldest queued write is checked. Must
+     *         be called while holding this object's lock.
+     */
+    private boolean isQueuedOrRunning(long sequence) {
+        if (mRunningSequence != 0 && mRunningSequence <= sequence) {
+            return true;
+        }
+        final Iterator<Task> it = mPending.values().iterator();
+        return it.hasNext() && it.next().mSequence <= sequence;
+    }
+
+    /**
+     * @return the number of writes which are queued or running.
+     */
+    synchronized int getPendingCount() {
+        return mPending.size() + mRunningCount;
+    }
+
+    /**
+     * @return the number of writes which were replaced by a newer write for the same key.
+     */
+    synchronized int getCoalescedCount() {
+        return mCoalescedCount;
+    }
+
+    /**
+     * @return the number of writes which were discarded because the queue was full.
+     */
+    synchronized int getDroppedCount() {
+        return mDroppedCount;
+    }
+
+    private final Runnable mDrainRunnable = new Runnable() {
+        @Override
+        public void run() {
+            Process.setThreadPriority(Process.THREAD_PRIORITY_BACKGROUND);
+
+            while (true) {
+                final Task task;
+                synchronized (DiskWriteQueue.this) {
+                    final Iterator<Map.Entry<String, Task>> it = mPending.entrySet().iterator();
+                    if (!it.hasNext()) {
+                        mDraining = false;
+                        DiskWriteQueue.this.notifyAll();
+                        return;
+                    }
+                    task = it.next().getValue();
+                    it.remove();
+                    mRunningCount++;
+                    mRunningSequence = task.mSequence;
+                    // There is now room in the queue
+                    DiskWriteQueue.this.notifyAll();
+                }
+
+                try {
+                    task.run();
+                } catch (RuntimeException e) {
+                    Log.e(Constants.LOG_TAG, "Error while writing to disk cache", e);
+                } finally {
+                    synchronized (DiskWriteQueue.this) {
+                        mRunningCount--;
+                        mRunningSequence = 0;
+                        DiskWriteQueue.this.notifyAll();
+                    }
+                }
+            }
+        }
+    };
+
+}
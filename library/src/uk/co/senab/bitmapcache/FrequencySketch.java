@@ -0,0 +1,130 @@
+/*******************************************************************************
+ * Copyright (c) 2013 Chris Banes.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ ******************************************************************************/
+package uk.co.senab.bitmapcache;
+
+/**
+ * A Count-Min sketch of 4-bit counters, used to estimate how often a key has been accessed
+ * recently. Once enough increments have been recorded, all counters are halved so that old
+ * popularity fades away.
+ *
+ * <p> This class is not synchronized. Concurrent increments may occasionally be lost, which is
+ * fine as the counts are only an estimate anyway. </p>
+ */
+final class FrequencySketch {
+
+    private static final int[] SEEDS = {0x97cb3127, 0xb9d97e4b, 0x9b0a4d3f, 0x7c7e1e9b};
+
+    // Each int holds 8 4-bit counters
+    private static final int COUNTERS_PER_INT = 8;
+    private static final int MAX_COUNT = 15;
+    private static final int RESET_MASK = 0x77777777;
+
+    // Number of counters per expected entry, and number of samples per expected entry
+    private static final int COUNTERS_PER_ENTRY = 8;
+    private static final int SAMPLES_PER_ENTRY = 10;
+
+    private final int[] mTable;
+    private final int mCounterMask;
+    private final int mSampleSize;
+
+    private int mAdditions;
+
+    /**
+     * @param expectedEntries - The number of entries the cache is expected to hold.
+     */
+    FrequencySketch(int expectedEntries) {
+        final int entries = Math.max(expectedEntries, 16);
+        final int counters = ceilingPowerOfTwo(entries * COUNTERS_PER_ENTRY);
+
+        mTable = new int[counters / COUNTERS_PER_INT];
+        mCounterMask = counters - 1;
+        mSampleSize = entries * SAMPLES_PER_ENTRY;
+    }
+
+    /**
+     * @return the estimated number of recent accesses of the key with the given hash, from 0 to
+     *         {@value #MAX_COUNT}.
+     */
+    int frequency(int hash) {
+        hash = spread(hash);
+
+        int frequency = MAX_COUNT;
+        for (int i = 0; i < SEEDS.length; i++) {
+            frequency = Math.min(frequency, getCount(indexOf(hash, i)));
+        }
+        return frequency;
+    }
+
+    /**
+     * Records an access of the key with the given hash.
+     */
+    void increment(int hash) {
+        hash = spread(hash);
+
+        boolean added = false;
+        for (int i = 0; i < SEEDS.length; i++) {
+            added |= incrementCount(indexOf(hash, i));
+        }
+
+        if (added && ++mAdditions >= mSampleSize) {
+            reset();
+        }
+    }
+
+    private int getCount(int counterIndex) {
+        final int shift = (counterIndex & (COUNTERS_PER_INT - 1)) << 2;
+        return (mTable[counterIndex >>> 3] >>> shift) & MAX_COUNT;
+    }
+
+    private boolean incrementCount(int counterIndex) {
+        final int tableIndex = counterIndex >>> 3;
+        final int shift = (counterIndex & (COUNTERS_PER_INT - 1)) << 2;
+
+        final int value = mTable[tableIndex];
+        if (((value >>> shift) & MAX_COUNT) < MAX_COUNT) {
+            mTable[tableIndex] = value + (1 << shift);
+            return true;
+        }
+        return false;
+    }
+
+    /**
+     * Halves every counter, and the number of additions.
+     */
+    private void reset() {
+        for (int i = 0; i < mTable.length; i++) {
+            mTable[i] = (mTable[i] >>> 1) & RESET_MASK;
+        }
+        mAdditions /= 2;
+    }
+
+    private int indexOf(int hash, int i) {
+        int h = (hash + SEEDS[i]) * SEEDS[i];
+        h += h >>> 16;
+        return h & mCounterMask;
+    }
+
+    private static int spread(int hash) {
+        hash = ((hash >>> 16) ^ hash) * 0x45d9f3b;
+        hash = ((hash >>> 16) ^ hash) * 0x45d9f3b;
+        return (hash >>> 16) ^ hash;
+    }
+
+    private static int ceilingPowerOfTwo(int x) {
+        return 1 << (32 - Integer.numberOfLeadingZeros(x - 1));
+    }
+
+}
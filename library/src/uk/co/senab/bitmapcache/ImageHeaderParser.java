@@ -0,0 +1,382 @@
+/*******************************************************************************
+ * Copyright (c) 2013 Chris Banes.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ ******************************************************************************/
+package uk.co.senab.bitmapcache;
+
+import android.graphics.Bitmap;
+
+import java.io.EOFException;
+import java.io.IOException;
+import java.io.InputStream;
+
+/**
+ * Reads the type, dimensions and whether an image may have alpha from the start of the encoded
+ * data. This is much cheaper than a {@code inJustDecodeBounds} decode, and as the stream is reset
+ * afterwards the same stream can then be used for the full decode.
+ *
+ * <p> JPEG, PNG, GIF, WebP (VP8, VP8L and VP8X) and BMP are supported, along with the cache's
+ * own {@link RawBitmapFormat}. </p>
+ */
+final class ImageHeaderParser {
+
+    /**
+     * The maximum number of bytes read from the stream. JPEG dimensions can be preceded by large
+     * EXIF segments, so this needs to cover them.
+     */
+    static final int MARK_LIMIT = 64 * 1024;
+
+    enum ImageType {
+        JPEG("image/jpeg"),
+        PNG("image/png"),
+        GIF("image/gif"),
+        WEBP("image/webp"),
+        BMP("image/bmp"),
+        RAW(RawBitmapFormat.MIME_TYPE);
+
+        final String mMimeType;
+
+        ImageType(String mimeType) {
+            mMimeType = mimeType;
+        }
+    }
+
+    static final class ImageInfo {
+        final ImageType mType;
+        final int mWidth;
+        final int mHeight;
+
+        // If false, the image definitely has no transparent pixels
+        final boolean mHasAlpha;
+
+        ImageInfo(ImageType type, int width, int height, boolean hasAlpha) {
+            mType = type;
+            mWidth = width;
+            mHeight = height;
+            mHasAlpha = hasAlpha;
+        }
+
+        String getMimeType() {
+            return mType.mMimeType;
+        }
+
+        @Override
+        public String toString() {
+            return mType + " " + mWidth + "x" + mHeight + (mHasAlpha ? " with alpha" : "");
+        }
+    }
+
+    /**
+     * Parses the header of {@code is}, and then resets it to where it was.
+     *
+     * @param is - Stream to parse, which must support {@link InputStream#mark(int)}.
+     * @return the image's info, or {@code null} if the format is not recognised or the header is
+     *         malformed.
+     * @throws IOException if the stream could not be reset.
+     */
+    static ImageInfo parse(InputStream is) throws IOException {
+        is.mark(MARK_LIMIT);
+        try {
+            return new ImageHeaderParser(is).parse();
+        } catch (IOException e) {
+            // Not an image we can parse, or not a valid one
+            return null;
+        } finally {
+            is.reset();
+        }
+    }
+
+    private static final int PNG_SIGNATURE_HIGH = 0x89504E47;
+    private static final int PNG_SIGNATURE_LOW = 0x0D0A1A0A;
+    private static final int PNG_IHDR = 0x49484452;
+    private static final int PNG_TRNS = 0x74524E53;
+    private static final int PNG_IDAT = 0x49444154;
+    private static final int PNG_COLOR_TYPE_PALETTE = 3;
+    private static final int PNG_COLOR_TYPE_GRAY_ALPHA = 4;
+    private static final int PNG_COLOR_TYPE_RGBA = 6;
+
+    private static final int RIFF = 0x52494646;
+    private static final int WEBP = 0x57454250;
+    private static final int WEBP_VP8 = 0x56503820;
+    private static final int WEBP_VP8L = 0x5650384C;
+    private static final int WEBP_VP8X = 0x56503858;
+
+    private static final int GIF_SIGNATURE = 0x474946;
+
+    private final InputStream mStream;
+    private int mPosition;
+
+    private ImageHeaderParser(InputStream is) {
+        mStream = is;
+    }
+
+    private ImageInfo parse() throws IOException {
+        final int first = readUInt16BE();
+
+        if (first == 0xFFD8) {
+            return parseJpeg();
+        }
+        if (first == 0x424D) {
+            return parseBmp();
+        }
+
+        final int firstFour = (first << 16) | readUInt16BE();
+        if (firstFour == PNG_SIGNATURE_HIGH) {
+            return parsePng();
+        }
+        if (firstFour == RIFF) {
+            return parseWebp();
+        }
+        if ((firstFour >>> 8) == GIF_SIGNATURE) {
+            return parseGif();
+        }
+        if (firstFour == RawBitmapFormat.MAGIC) {
+            return parseRaw();
+        }
+
+        return null;
+    }
+
+    private ImageInfo parseJpeg() throws IOException {
+        while (true) {
+            if (readByte() != 0xFF) {
+                return null;
+            }
+
+            // Markers may be padded with any number of 0xFF
+            int marker;
+            do {
+                marker = readByte();
+            } while (marker == 0xFF);
+
+            if (marker == 0xD9 || marker == 0xDA) {
+                // End of image, or start of scan. Either way there is no frame header.
+                return null;
+            }
+            if (marker == 0x01 || (marker >= 0xD0 && marker <= 0xD7)) {
+                // Standalone markers, without a length
+                continue;
+            }
+
+            final int length = readUInt16BE();
+            if (length < 2) {
+                return null;
+            }
+
+            if (isJpegStartOfFrame(marker)) {
+                // Skip the sample precision
+                skip(1);
+                final int height = readUInt16BE();
+                final int width = readUInt16BE();
+                return new ImageInfo(ImageType.JPEG, width, height, false);
+            }
+
+            skip(length - 2);
+        }
+    }
+
+    private static boolean isJpegStartOfFrame(int marker) {
+        // SOF0 to SOF15, apart from DHT (C4), JPG (C8) and DAC (CC)
+        return marker >= 0xC0 && marker <= 0xCF && marker != 0xC4 && marker != 0xC8
+                && marker != 0xCC;
+    }
+
+    private ImageInfo parsePng() throws IOException {
+        if (readInt32BE() != PNG_SIGNATURE_LOW) {
+            return null;
+        }
+
+        // IHDR is always the first chunk
+        final int ihdrLength = readInt32BE();
+        if (readInt32BE() != PNG_IHDR) {
+            return null;
+        }
+        final int width = readInt32BE();
+        final int height = readInt32BE();
+        // Skip the bit depth
+        skip(1);
+        final int colorType = readByte();
+
+        if (colorType == PNG_COLOR_TYPE_GRAY_ALPHA || colorType == PNG_COLOR_TYPE_RGBA
+                || colorType == PNG_COLOR_TYPE_PALETTE) {
+            // Palette images may have alpha in their tRNS chunk, which is usually the case
+            return new ImageInfo(ImageType.PNG, width, height, true);
+        }
+
+        // Other color types can still have a transparent color, given in a tRNS chunk before
+        // the image data. Skip the rest of IHDR and it's CRC, then look for it.
+        skip(ihdrLength - 10 + 4);
+        boolean hasAlpha = false;
+        try {
+            while (true) {
+                final int length = readInt32BE();
+                final int type = readInt32BE();
+                if (type == PNG_TRNS) {
+                    hasAlpha = true;
+                    break;
+                } else if (type == PNG_IDAT || length < 0) {
+                    break;
+                }
+                skip(length + 4L);
+            }
+        } catch (IOException e) {
+            // Gave up before finding the image data, so assume there may be alpha
+            hasAlpha = true;
+        }
+        return new ImageInfo(ImageType.PNG, width, height, hasAlpha);
+    }
+
+    private ImageInfo parseGif() throws IOException {
+        // Skip the rest of the version, ie: '7a' or '9a'
+        skip(2);
+        final int width = readUInt16LE();
+        final int height = readUInt16LE();
+        // Any frame may have a transparent color
+        return new ImageInfo(ImageType.GIF, width, height, true);
+    }
+
+    private ImageInfo parseWebp() throws IOException {
+        // Skip the file size
+        skip(4);
+        if (readInt32BE() != WEBP) {
+            return null;
+        }
+
+        final int chunk = readInt32BE();
+        // Skip the chunk size
+        skip(4);
+
+        switch (chunk) {
+            case WEBP_VP8: {
+                // Skip the frame tag, then check the start code
+                skip(3);
+                if (readByte() != 0x9D || readByte() != 0x01 || readByte() != 0x2A) {
+                    return null;
+                }
+                final int width = readUInt16LE() & 0x3FFF;
+                final int height = readUInt16LE() & 0x3FFF;
+                return new ImageInfo(ImageType.WEBP, width, height, false);
+            }
+            case WEBP_VP8L: {
+                if (readByte() != 0x2F) {
+                    return null;
+                }
+                final int bits = readInt32LE();
+                final int width = (bits & 0x3FFF) + 1;
+                final int height = ((bits >> 14) & 0x3FFF) + 1;
+                final boolean hasAlpha = ((bits >> 28) & 0x1) != 0;
+                return new ImageInfo(ImageType.WEBP, width, height, hasAlpha);
+            }
+            case WEBP_VP8X: {
+                final int flags = readByte();
+                skip(3);
+                final int width = readUInt24LE() + 1;
+                final int height = readUInt24LE() + 1;
+                final boolean hasAlpha = (flags & 0x10) != 0;
+                return new ImageInfo(ImageType.WEBP, width, height, hasAlpha);
+            }
+        }
+
+        return null;
+    }
+
+    private ImageInfo parseBmp() throws IOException {
+        // Skip the rest of the file header
+        skip(12);
+
+        final int headerSize = readInt32LE();
+        final int width, height, bitsPerPixel;
+        if (headerSize == 12) {
+            // BITMAPCOREHEADER
+            width = readUInt16LE();
+            height = readUInt16LE();
+            skip(2);
+            bitsPerPixel = readUInt16LE();
+        } else if (headerSize >= 40) {
+            width = readInt32LE();
+            // Top-down bitmaps have a negative height
+            height = Math.abs(readInt32LE());
+            skip(2);
+            bitsPerPixel = readUInt16LE();
+        } else {
+            return null;
+        }
+
+        return new ImageInfo(ImageType.BMP, width, height, bitsPerPixel == 32);
+    }
+
+    private ImageInfo parseRaw() throws IOException {
+        final int width = readInt32BE();
+        final int height = readInt32BE();
+        final Bitmap.Config config = RawBitmapFormat.getConfig(readInt32BE());
+        if (null == config) {
+            return null;
+        }
+        return new ImageInfo(ImageType.RAW, width, height, config != Bitmap.Config.RGB_565);
+    }
+
+    private int readByte() throws IOException {
+        if (mPosition >= MARK_LIMIT) {
+            throw new EOFException("Read past mark limit");
+        }
+        final int b = mStream.read();
+        if (b == -1) {
+            throw new EOFException();
+        }
+        mPosition++;
+        return b;
+    }
+
+    private int readUInt16BE() throws IOException {
+        return (readByte() << 8) | readByte();
+    }
+
+    private int readUInt16LE() throws IOException {
+        return readByte() | (readByte() << 8);
+    }
+
+    private int readUInt24LE() throws IOException {
+        return readByte() | (readByte() << 8) | (readByte() << 16);
+    }
+
+    private int readInt32BE() throws IOException {
+        return (readUInt16BE() << 16) | readUInt16BE();
+    }
+
+    private int readInt32LE() throws IOException {
+        return readUInt16LE() | (readUInt16LE() << 16);
+    }
+
+    private void skip(long count) throws IOException {
+        if (count < 0 || mPosition + count > MARK_LIMIT) {
+            throw new EOFException("Skip past mark limit");
+        }
+
+        long remaining = count;
+        while (remaining > 0) {
+            final long skipped = mStream.skip(remaining);
+            if (skipped > 0) {
+                remaining -= skipped;
+            } else {
+                // skip() may give up early, so fall back to reading
+                if (mStream.read() == -1) {
+                    throw new EOFException();
+                }
+                remaining--;
+            }
+        }
+        mPosition += count;
+    }
+
+}
@@ -0,0 +1,132 @@
+/*******************************************************************************
+ * Copyright (c) 2013 Chris Banes.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ ******************************************************************************/
+package uk.co.senab.bitmapcache;
+
+import java.util.HashMap;
+import java.util.concurrent.CountDownLatch;
+
+/**
+ * Makes sure that only one load runs at a time for each key. A thread which asks for a key which
+ * is already being loaded waits for that load, and receives the same result.
+ *
+ * <p> Every thread waiting on a load holds a reference to it, including the thread running it.
+ * A waiting thread which is interrupted gives up it's reference and returns {@code null}. The
+ * load itself can check {@link Load#isWanted()}, and stop early once nobody is waiting for it.
+ * </p>
+ */
+final class InFlightLoads<K, V> {
+
+    /**
+     * Performs a load. Runs on the thread of the first caller for the key.
+     */
+    interface Loader<V> {
+        V load(Load<V> load);
+    }
+
+    static final class Load<V> {
+        private final CountDownLatch mLatch = new CountDownLatch(1);
+        private V mResult;
+
+        // Guarded by the owning InFlightLoads
+        private int mRefCount = 1;
+        private boolean mOwnerReleased;
+
+        private final InFlightLoads<?, V> mLoads;
+
+        Load(InFlightLoads<?, V> loads) {
+            mLoads = loads;
+        }
+
+        /**
+         * Called by the load to check whether it's result is still wanted. If the thread running
+         * the load has been interrupted, it gives up it's reference. The load should carry on as
+         * long as any other thread is waiting.
+         */
+        boolean isWanted() {
+            synchronized (mLoads) {
+                if (!mOwnerReleased && Thread.currentThread().isInterrupted()) {
+                    mOwnerReleased = true;
+                    mRefCount--;
+                }
+                return mRefCount > 0;
+            }
+        }
+    }
+
+    private final HashMap<K, Load<V>> mLoads = new HashMap<K, Load<V>>();
+    private int mCoalescedCount;
+
+    /**
+     * Returns the result for {@code key}. If a load for {@code key} is already running, this waits
+     * for it. Otherwise {@code loader} is run on the calling thread.
+     *
+     * @return the result, or {@code null} if the calling thread was interrupted while waiting.
+     */
+    V load(K key, Loader<V> loader) {
+        Load<V> load;
+        final boolean owner;
+
+        synchronized (this) {
+            load = mLoads.get(key);
+            if (null != load) {
+                load.mRefCount++;
+                mCoalescedCount++;
+                owner = false;
+            } else {
+                load = new Load<V>(this);
+                mLoads.put(key, load);
+                owner = true;
+            }
+        }
+
+        if (owner) {
+            V result = null;
+            try {
+                result = loader.load(load);
+            } finally {
+                synchronized (this) {
+                    mLoads.remove(key);
+                    load.mResult = result;
+                }
+                load.mLatch.countDown();
+            }
+            return result;
+        }
+
+        try {
+            load.mLatch.await();
+        } catch (InterruptedException e) {
+            synchronized (this) {
+                load.mRefCount--;
+            }
+            Thread.currentThread().interrupt();
+            return null;
+        }
+
+        synchronized (this) {
+            return load.mResult;
+        }
+    }
+
+    /**
+     * @return the number of calls which waited for a load which was already running, instead of
+     *         starting their own.
+     */
+    synchronized int getCoalescedCount() {
+        return mCoalescedCount;
+    }
+
+}
@@ -15,17 +15,30 @@
  ******************************************************************************/
 package uk.co.senab.bitmapcache;
 
+import android.os.SystemClock;
 import android.util.Log;
 
-import java.io.File;
+import java.io.ByteArrayOutputStream;
 import java.io.FileInputStream;
-import java.io.FileOutputStream;
+import java.io.FilterInputStream;
+import java.io.FilterOutputStream;
 import java.io.IOException;
 import java.io.InputStream;
 import java.io.OutputStream;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
 
 class IoUtils {
 
+    static final int COPY_BUFFER_SIZE = 8 * 1024;
+
+    // Files up to this size are read into a pooled array, as mapping them costs more than a read
+    static final int MAP_THRESHOLD = 64 * 1024;
+
+    private static final ByteArrayPool sCopyBuffers = new ByteArrayPool(COPY_BUFFER_SIZE, 4);
+
+    private static final ByteArrayPool sSmallFileBuffers = new ByteArrayPool(MAP_THRESHOLD, 4);
+
     static void closeStream(InputStream is) {
         if (is != null) {
             try {
@@ -46,20 +59,13 @@ class IoUtils {
         }
     }
 
-    static long copy(File in, OutputStream out) throws IOException {
-        return copy(new FileInputStream(in), out);
-    }
-
-    static long copy(InputStream in, File out) throws IOException {
-        return copy(in, new FileOutputStream(out));
-    }
-
     /**
-     * Pipe an InputStream to the given OutputStream <p /> Taken from Apache Commons IOUtils.
+     * Pipe an InputStream to the given OutputStream, closing both afterwards. <p /> Taken from
+     * Apache Commons IOUtils.
      */
-    private static long copy(InputStream input, OutputStream output) throws IOException {
+    static long copy(InputStream input, OutputStream output) throws IOException {
+        final byte[] buffer = sCopyBuffers.get();
         try {
-            byte[] buffer = new byte[1024 * 4];
             long count = 0;
             int n;
             while (-1 != (n = input.read(buffer))) {
@@ -69,9 +75,151 @@ class IoUtils {
             output.flush();
             return count;
         } finally {
+            sCopyBuffers.put(buffer);
             IoUtils.closeStream(input);
             IoUtils.closeStream(output);
         }
     }
 
+    /**
+     * Reads the rest of {@code input} into memory, closing it afterwards.
+     */
+    static byte[] readFully(InputStream input) throws IOException {
+        final ByteArrayOutputStream output = new ByteArrayOutputStream(
+                Math.max(1024 * 4, input.available()));
+        copy(input, output);
+        return output.toByteArray();
+    }
+
+    /**
+     * Writes the remaining bytes of {@code buffer} to {@code output}, closing it afterwards. The
+     * buffer's position is not modified.
+     */
+    static void write(ByteBuffer buffer, OutputStream output) throws IOException {
+        try {
+            if (buffer.hasArray()) {
+                output.write(buffer.array(), buffer.arrayOffset() + buffer.position(),
+                        buffer.remaining());
+            } else {
+                final ByteBuffer source = buffer.duplicate();
+                final byte[] chunk = sCopyBuffers.get();
+                try {
+                    while (source.hasRemaining()) {
+                        final int count = Math.min(chunk.length, source.remaining());
+                        source.get(chunk, 0, count);
+                        output.write(chunk, 0, count);
+                    }
+                } finally {
+                    sCopyBuffers.put(chunk);
+                }
+            }
+            output.flush();
+        } finally {
+            IoUtils.closeStream(output);
+        }
+    }
+
+    /**
+     * Opens the contents of the file behind {@code input} as an in-memory stream, which supports
+     * mark and reset. Large files are memory mapped, and small files are read into a pooled array
+     * which is returned when the stream is closed. {@code input} is closed if this succeeds, and
+     * left untouched if it fails.
+     */
+    static InputStream openMapped(FileInputStream input) throws IOException {
+        final FileChannel channel = input.getChannel();
+        final long size = channel.size();
+
+        final ByteBufferInputStream result;
+        if (size <= MAP_THRESHOLD) {
+            final byte[] array = sSmallFileBuffers.get();
+            final ByteBuffer buffer = ByteBuffer.wrap(array, 0, (int) size);
+
+            // Positional reads, so that input's own position is not moved
+            try {
+                int read = 0;
+                while (buffer.hasRemaining() && read >= 0) {
+                    read = channel.read(buffer, buffer.position());
+                }
+            } catch (IOException e) {
+                sSmallFileBuffers.put(array);
+                throw e;
+            }
+            buffer.flip();
+            result = new ByteBufferInputStream(buffer, sSmallFileBuffers);
+        } else {
+            // The mapping stays valid once the channel is closed
+            result = new ByteBufferInputStream(
+                    channel.map(FileChannel.MapMode.READ_ONLY, 0, size));
+        }
+
+        closeStream(input);
+        return result;
+    }
+
+    /**
+     * Counts the bytes written through it.
+     */
+    static final class CountingOutputStream extends FilterOutputStream {
+        private long mCount;
+
+        CountingOutputStream(OutputStream out) {
+            super(out);
+        }
+
+        @Override
+        public void write(int b) throws IOException {
+            out.write(b);
+            mCount++;
+        }
+
+        @Override
+        public void write(byte[] buffer, int offset, int length) throws IOException {
+            out.write(buffer, offset, length);
+            mCount += length;
+        }
+
+        long getCount() {
+            return mCount;
+        }
+    }
+
+    /**
+     * Times how long is spent reading from it, up to the end of the stream. Time spent by the
+     * caller in between reads, such as writing what was read to disk, is not counted.
+     */
+    static final class TimingInputStream extends FilterInputStream {
+        private long mReadTime;
+
+        TimingInputStream(InputStream in) {
+            super(in);
+        }
+
+        @Override
+        public int read() throws IOException {
+            final long startTime = SystemClock.elapsedRealtime();
+            try {
+                return in.read();
+            } finally {
+                mReadTime += SystemClock.elapsedRealtime() - startTime;
+            }
+        }
+
+        @Override
+        public int read(byte[] buffer, int offset, int length) throws IOException {
+            final long startTime = SystemClock.elapsedRealtime();
+            try {
+                return in.read(buffer, offset, length);
+            } finally {
+                mReadTime += SystemClock.elapsedRealtime() - startTime;
+            }
+        }
+
+        /**
+         * @return the time spent reading, in milliseconds.
+         */
+        long getReadTime() {
+            return mReadTime;
+        }
+    }
+
 }
@@ -0,0 +1,93 @@
+/*******************************************************************************
+ * Copyright (c) 2013 Chris Banes.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ ******************************************************************************/
+package uk.co.senab.bitmapcache;
+
+import android.graphics.Bitmap;
+import android.graphics.BitmapFactory;
+
+/**
+ * Key used for the memory cache. The same URL can be decoded in a number of ways, so the key is
+ * made up of the URL, the sample size and the config which were requested. This means that a
+ * Bitmap decoded for a thumbnail is never returned for a full size request, or the other way
+ * round.
+ */
+final class MemoryKey {
+
+    static final Bitmap.Config DEFAULT_CONFIG = Bitmap.Config.ARGB_8888;
+
+    /**
+     * @return the key for a full size decode of {@code url}, using the default options.
+     */
+    static MemoryKey forUrl(String url) {
+        return new MemoryKey(url, 1, DEFAULT_CONFIG);
+    }
+
+    /**
+     * @return the key for a decode of {@code url}, using {@code opts}. This should be called
+     *         before the decode, as the options may be modified by it.
+     */
+    static MemoryKey forOptions(String url, BitmapFactory.Options opts) {
+        if (null == opts) {
+            return forUrl(url);
+        }
+        return new MemoryKey(url, Math.max(1, opts.inSampleSize),
+                null != opts.inPreferredConfig ? opts.inPreferredConfig : DEFAULT_CONFIG);
+    }
+
+    final String mUrl;
+    final int mSampleSize;
+    final Bitmap.Config mConfig;
+
+    MemoryKey(String url, int sampleSize, Bitmap.Config config) {
+        mUrl = url;
+        mSampleSize = sampleSize;
+        mConfig = config;
+    }
+
+    /**
+     * @return a key for the same URL and config, but with a different sample size.
+     */
+    MemoryKey withSampleSize(int sampleSize) {
+        return new MemoryKey(mUrl, sampleSize, mConfig);
+    }
+
+    @Override
+    public boolean equals(Object o) {
+        if (this == o) {
+            return true;
+        }
+        if (!(o instanceof MemoryKey)) {
+            return false;
+        }
+        MemoryKey other = (MemoryKey) o;
+        return mSampleSize == other.mSampleSize && mConfig == other.mConfig
+                && mUrl.equals(other.mUrl);
+    }
+
+    @Override
+    public int hashCode() {
+        int result = mUrl.hashCode();
+        result = 31 * result + mSampleSize;
+        result = 31 * result + mConfig.hashCode();
+        return result;
+    }
+
+    @Override
+    public String toString() {
+        return mUrl + " [sampleSize=" + mSampleSize + ", config=" + mConfig + "]";
+    }
+
+}
@@ -0,0 +1,942 @@
+/*******************************************************************************
+ * Copyright (c) 2013 Chris Banes.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ ******************************************************************************/
+package uk.co.senab.bitmapcache;
+
+import android.os.Process;
+import android.util.Log;
+
+import java.io.ByteArrayOutputStream;
+import java.io.EOFException;
+import java.io.File;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.TreeMap;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.locks.ReentrantReadWriteLock;
+import java.util.zip.CRC32;
+
+/**
+ * Disk cache storage which appends entries to large segment files, rather than storing each entry
+ * in it's own files. This avoids an inode, directory lookup and open per entry, which dominates the
+ * cost of storing small thumbnails.
+ *
+ * <ul> <li>Each record holds a key, the entry's metadata and the image. Removing an entry appends
+ * a tombstone record for it's key.</li> <li>An index of every live entry is kept in memory, and is
+ * rebuilt by scanning the segments when the cache is opened. Later records replace earlier ones.
+ * </li> <li>Images are read with positional reads, or memory mapped if they are large.</li>
+ * <li>Replaced and removed records leave dead space. Once less than half of a segment is live, the
+ * live records are copied to the end of the newest segment in the background, and the old segment
+ * is deleted.</li> <li>Entries are evicted in the order chosen by a {@link DiskCacheEvictor} to
+ * stay within the maximum size. Dead space is not counted, so the files can use up to about twice
+ * the maximum size before they are compacted.</li> </ul>
+ *
+ * <p> Edits are buffered in memory until they are committed, so this is best suited to small
+ * images. Records are appended while holding an append lock, and the index is only locked to
+ * publish them, so reads never wait for a disk write. </p>
+ */
+final class PackFileDiskCache implements DiskCacheStorage {
+
+    static final int SEGMENT_MAX_SIZE = 4 * 1024 * 1024;
+
+    // Segments with less than this proportion of live bytes are compacted
+    static final float COMPACTION_LIVE_RATIO = 0.5f;
+
+    private static final String SEGMENT_PREFIX = "pack-";
+    private static final String SEGMENT_SUFFIX = ".dat";
+
+    private static final int RECORD_MAGIC = 0x42435046;
+    private static final byte TYPE_ENTRY = 1;
+    private static final byte TYPE_TOMBSTONE = 2;
+
+    // Magic, type, key length, metadata length, image length and image CRC
+    private static final int RECORD_HEADER_SIZE = 4 + 1 + 2 + 2 + 4 + 4;
+
+    private static final int MAX_STRING_LENGTH = 0xFFFF;
+
+    /**
+     * Opens the cache in {@code directory}, creating it if needed.
+     *
+     * @param evictor - Chooses which entries to evict. It should be new, as it is told about
+     *                every entry as the cache is loaded.
+     */
+    static PackFileDiskCache open(File directory, long maxSize, DiskCacheEvictor evictor)
+            throws IOException {
+        if (!directory.isDirectory() && !directory.mkdirs()) {
+            throw new IOException("Unable to create " + directory);
+        }
+
+        final PackFileDiskCache cache = new PackFileDiskCache(directory, maxSize, evictor);
+        try {
+            cache.load();
+        } catch (IOException e) {
+            cache.close();
+            throw e;
+        }
+        return cache;
+    }
+
+    /**
+     * Deletes any segment files in {@code directory}, such as when another storage engine is
+     * being used there instead.
+     */
+    static void deleteSegments(File directory) {
+        final File[] files = directory.listFiles();
+        if (null == files) {
+            return;
+        }
+        for (File file : files) {
+            if (parseSegmentId(file.getName()) >= 0) {
+                file.delete();
+            }
+        }
+    }
+
+    private static int parseSegmentId(String name) {
+        if (name.startsWith(SEGMENT_PREFIX) && name.endsWith(SEGMENT_SUFFIX)) {
+            try {
+                return Integer.parseInt(name.substring(SEGMENT_PREFIX.length(),
+                        name.length() - SEGMENT_SUFFIX.length()));
+            } catch (NumberFormatException e) {
+                // Not a segment
+            }
+        }
+        return -1;
+    }
+
+    private static final class Segment {
+        final int mId;
+        final File mFile;
+        final RandomAccessFile mRandomAccessFile;
+        final FileChannel mChannel;
+
+        // Only grown while holding the append lock, and guarded by the cache
+        long mSize;
+        // Guarded by the cache
+        long mLiveBytes;
+
+        // Guarded by the write lock of mSegmentLock
+        boolean mClosed;
+
+        Segment(int id, File file) throws IOException {
+            mId = id;
+            mFile = file;
+            mRandomAccessFile = new RandomAccessFile(file, "rw");
+            mChannel = mRandomAccessFile.getChannel();
+        }
+
+        void close() {
+            try {
+                mRandomAccessFile.close();
+            } catch (IOException e) {
+                // Ignore
+            }
+        }
+    }
+
+    /**
+     * Where an entry's image is stored. Replaced as a whole when the entry is moved by compaction.
+     */
+    private static final class Position {
+        final Segment mSegment;
+        final long mImageOffset;
+        final int mImageLength;
+        final int mImageCrc;
+        final int mRecordSize;
+
+        // Whether the image is known to match it's CRC, so that it is only checked once
+        volatile boolean mVerified;
+
+        Position(Segment segment, long imageOffset, int imageLength, int imageCrc,
+                int recordSize, boolean verified) {
+            mSegment = segment;
+            mImageOffset = imageOffset;
+            mImageLength = imageLength;
+            mImageCrc = imageCrc;
+            mRecordSize = recordSize;
+            mVerified = verified;
+        }
+    }
+
+    private static final class Entry {
+        final String mKey;
+        final String mMetadata;
+        volatile Position mPosition;
+
+        // Guarded by the cache
+        boolean mRemoved;
+
+        Entry(String key, String metadata, Position position) {
+            mKey = key;
+            mMetadata = metadata;
+            mPosition = position;
+        }
+    }
+
+    private final File mDirectory;
+    private final long mMaxSize;
+
+    // Held while appending records and publishing them, so that the segments are written in the
+    // same order as the index is changed. Taken before this object's lock, which only guards the
+    // in-memory state, so that get() never waits for a disk write.
+    private final Object mAppendLock = new Object();
+
+    // Guarded by this. The active segment is only changed while also holding mAppendLock.
+    private final TreeMap<Integer, Segment> mSegments = new TreeMap<Integer, Segment>();
+    private Segment mActiveSegment;
+    private final HashMap<String, Entry> mIndex = new HashMap<String, Entry>();
+    private final DiskCacheEvictor mEvictor;
+    private final HashSet<String> mEditing = new HashSet<String>();
+    private long mSize;
+    private boolean mCompactionScheduled;
+    private boolean mClosed;
+
+    // Segments are only closed while holding the write lock, and read while holding the read lock
+    private final ReentrantReadWriteLock mSegmentLock = new ReentrantReadWriteLock();
+
+    private final ExecutorService mCompactionExecutor;
+
+    private PackFileDiskCache(File directory, long maxSize, DiskCacheEvictor evictor) {
+        mDirectory = directory;
+        mMaxSize = maxSize;
+        mEvictor = evictor;
+        mCompactionExecutor = Executors.newSingleThreadExecutor();
+    }
+
+    @Override
+    public Snapshot get(String key) throws IOException {
+        final Entry entry;
+        synchronized (this) {
+            entry = mIndex.get(key);
+            if (null != entry) {
+                mEvictor.onAccess(key);
+            }
+        }
+        return null != entry ? new PackSnapshot(entry) : null;
+    }
+
+    @Override
+    public Editor edit(String key) throws IOException {
+        checkString(key);
+        synchronized (this) {
+            if (!mEditing.add(key)) {
+                return null;
+            }
+        }
+        return new PackEditor(key);
+    }
+
+    @Override
+    public boolean remove(String key) throws IOException {
+        synchronized (mAppendLock) {
+            synchronized (this) {
+                final Entry entry = mIndex.remove(key);
+                if (null == entry) {
+                    return false;
+                }
+                markDead(entry);
+                mEvictor.onRemove(key);
+            }
+            appendRecord(TYPE_TOMBSTONE, key, "", null, 0);
+            return true;
+        }
+    }
+
+    @Override
+    public void flush() {
+        // Records are written straight to the segment files, so nothing is buffered
+    }
+
+    /**
+     * Stops compaction and closes the segment files. The cache can not be used afterwards.
+     */
+    @Override
+    public void close() {
+        synchronized (this) {
+            mClosed = true;
+        }
+        mCompactionExecutor.shutdown();
+
+        // Waits for any write which is in progress, including a compaction step
+        synchronized (mAppendLock) {
+            final ArrayList<Segment> segments;
+            synchronized (this) {
+                segments = new ArrayList<Segment>(mSegments.values());
+            }
+
+            mSegmentLock.writeLock().lock();
+            try {
+                for (Segment segment : segments) {
+                    segment.mClosed = true;
+                    segment.close();
+                }
+            } finally {
+                mSegmentLock.writeLock().unlock();
+            }
+        }
+    }
+
+    @Override
+    public synchronized long size() {
+        return mSize;
+    }
+
+    private void load() throws IOException {
+        final File[] files = mDirectory.listFiles();
+        if (null != files) {
+            for (File file : files) {
+                final int id = parseSegmentId(file.getName());
+                if (id >= 0) {
+                    mSegments.put(id, new Segment(id, file));
+                }
+            }
+        }
+
+        synchronized (mAppendLock) {
+            final ArrayList<String> evicted;
+            synchronized (this) {
+                for (Segment segment : mSegments.values()) {
+                    loadSegment(segment);
+                }
+
+                if (mSegments.isEmpty()) {
+                    mActiveSegment = newSegment(0);
+                } else {
+                    mActiveSegment = mSegments.get(mSegments.lastKey());
+                }
+
+                evicted = trimToSize(null);
+            }
+            appendTombstones(evicted);
+        }
+
+        if (Constants.DEBUG) {
+            Log.d(Constants.LOG_TAG, "Loaded pack file cache with " + mIndex.size()
+                    + " entries in " + mSegments.size() + " segments");
+        }
+
+        scheduleCompactionIfNeeded();
+    }
+
+    /**
+     * Adds the records in {@code segment} to the index. A partly written record at the end, such
+     * as from a crash, is truncated.
+     */
+    private void loadSegment(Segment segment) throws IOException {
+        final long length = segment.mChannel.size();
+        final ByteBuffer header = ByteBuffer.allocate(RECORD_HEADER_SIZE);
+        long offset = 0;
+
+        while (true) {
+            final RecordHeader record = readRecordHeader(segment, offset, length, header);
+            if (null == record) {
+                break;
+            }
+
+            if (record.mType == TYPE_ENTRY) {
+                // Checked against the CRC when it is first read, rather than reading every
+                // image while the cache is opened
+                final Position position = new Position(segment, record.mImageOffset,
+                        record.mImageLength, record.mImageCrc, record.mRecordSize, false);
+                final Entry previous = mIndex.put(record.mKey,
+                        new Entry(record.mKey, record.mMetadata, position));
+                if (null != previous) {
+                    markDead(previous);
+                }
+                segment.mLiveBytes += record.mRecordSize;
+                mSize += record.mRecordSize;
+                mEvictor.onAdd(record.mKey, record.mRecordSize, record.mMetadata);
+            } else {
+                final Entry previous = mIndex.remove(record.mKey);
+                if (null != previous) {
+                    markDead(previous);
+                    mEvictor.onRemove(record.mKey);
+                }
+            }
+
+            offset += record.mRecordSize;
+        }
+
+        if (offset < length) {
+            Log.w(Constants.LOG_TAG, "Truncating damaged pack file " + segment.mFile + " at "
+                    + offset);
+            segment.mChannel.truncate(offset);
+        }
+        segment.mSize = offset;
+    }
+
+    private static final class RecordHeader {
+        byte mType;
+        String mKey;
+        String mMetadata;
+        long mImageOffset;
+        int mImageLength;
+        int mImageCrc;
+        int mRecordSize;
+    }
+
+    /**
+     * @return the header of the record at {@code offset}, or {@code null} if there is no valid
+     *         record there.
+     */
+    private static RecordHeader readRecordHeader(Segment segment, long offset, long length,
+            ByteBuffer header) throws IOException {
+        if (offset + RECORD_HEADER_SIZE > length) {
+            return null;
+        }
+
+        header.clear();
+        readFully(segment.mChannel, header, offset);
+        header.flip();
+
+        final int magic = header.getInt();
+        final byte type = header.get();
+        final int keyLength = header.getShort() & 0xFFFF;
+        final int metadataLength = header.getShort() & 0xFFFF;
+        final int imageLength = header.getInt();
+        final int imageCrc = header.getInt();
+
+        if (magic != RECORD_MAGIC || (type != TYPE_ENTRY && type != TYPE_TOMBSTONE)
+                || keyLength == 0 || imageLength < 0) {
+            return null;
+        }
+
+        final long stringsOffset = offset + RECORD_HEADER_SIZE;
+        final long imageOffset = stringsOffset + keyLength + metadataLength;
+        if (imageOffset + imageLength > length) {
+            return null;
+        }
+
+        final ByteBuffer strings = ByteBuffer.allocate(keyLength + metadataLength);
+        readFully(segment.mChannel, strings, stringsOffset);
+
+        final RecordHeader record = new RecordHeader();
+        record.mType = type;
+        record.mKey = new String(strings.array(), 0, keyLength, "UTF-8");
+        record.mMetadata = new String(strings.array(), keyLength, metadataLength, "UTF-8");
+        record.mImageOffset = imageOffset;
+        record.mImageLength = imageLength;
+        record.mImageCrc = imageCrc;
+        record.mRecordSize = (int) (imageOffset + imageLength - offset);
+        return record;
+    }
+
+    /**
+     * Appends a record to the active segment, starting a new segment if it is full. Must be
+     * called while holding mAppendLock, but not this object's lock, as it writes to disk. The
+     * record is not counted as live, which is up to the caller once it is published.
+     *
+     * @return the position of the record's image.
+     */
+    private Position appendRecord(byte type, String key, String metadata, byte[] image,
+            int imageLength) throws IOException {
+        final byte[] keyBytes = key.getBytes("UTF-8");
+        final byte[] metadataBytes = metadata.getBytes("UTF-8");
+
+        final CRC32 crc = new CRC32();
+        if (null != image) {
+            crc.update(image, 0, imageLength);
+        }
+
+        final ByteBuffer header = ByteBuffer.allocate(
+                RECORD_HEADER_SIZE + keyBytes.length + metadataBytes.length);
+        header.putInt(RECORD_MAGIC);
+        header.put(type);
+        header.putShort((short) keyBytes.length);
+        header.putShort((short) metadataBytes.length);
+        header.putInt(imageLength);
+        header.putInt((int) crc.getValue());
+        header.put(keyBytes);
+        header.put(metadataBytes);
+        header.flip();
+
+        final int recordSize = header.remaining() + imageLength;
+
+        // Only this thread can change it, as it holds mAppendLock
+        Segment segment = mActiveSegment;
+        if (segment.mSize > 0 && segment.mSize + recordSize > SEGMENT_MAX_SIZE) {
+            segment = newSegment(segment.mId + 1);
+            synchronized (this) {
+                mActiveSegment = segment;
+            }
+        }
+
+        final long offset = segment.mSize;
+        final long imageOffset = offset + header.remaining();
+
+        writeFully(segment.mChannel, header, offset);
+        if (null != image) {
+            writeFully(segment.mChannel, ByteBuffer.wrap(image, 0, imageLength), imageOffset);
+        }
+
+        synchronized (this) {
+            // Only count the record once it has been fully written
+            segment.mSize += recordSize;
+        }
+
+        return new Position(segment, imageOffset, imageLength, (int) crc.getValue(),
+                recordSize, true);
+    }
+
+    /**
+     * Appends a tombstone for each of {@code keys}. Must be called while holding mAppendLock, but
+     * not this object's lock.
+     */
+    private void appendTombstones(ArrayList<String> keys) throws IOException {
+        for (String key : keys) {
+            appendRecord(TYPE_TOMBSTONE, key, "", null, 0);
+        }
+    }
+
+    private Segment newSegment(int id) throws IOException {
+        final Segment segment = new Segment(id,
+                new File(mDirectory, SEGMENT_PREFIX + id + SEGMENT_SUFFIX));
+        synchronized (this) {
+            mSegments.put(id, segment);
+        }
+        return segment;
+    }
+
+    /**
+     * Marks the record of {@code entry} as dead space. Must be called while holding this object's
+     * lock.
+     */
+    private void markDead(Entry entry) {
+        final Position position = entry.mPosition;
+        entry.mRemoved = true;
+        position.mSegment.mLiveBytes -= position.mRecordSize;
+        mSize -= position.mRecordSize;
+    }
+
+    /**
+     * Commits an edit. The record is written before this object's lock is taken, which is then
+     * only held to publish it. Must be called while holding mAppendLock.
+     */
+    private void commitEdit(String key, byte[] image, int imageLength, String metadata)
+            throws IOException {
+        final Position position = appendRecord(TYPE_ENTRY, key, metadata, image, imageLength);
+
+        final ArrayList<String> evicted;
+        synchronized (this) {
+            final Entry previous = mIndex.put(key, new Entry(key, metadata, position));
+            if (null != previous) {
+                markDead(previous);
+            }
+            position.mSegment.mLiveBytes += position.mRecordSize;
+            mSize += position.mRecordSize;
+            mEvictor.onAdd(key, position.mRecordSize, metadata);
+
+            // The new entry is kept, as it is about to be read by whoever wrote it
+            evicted = trimToSize(key);
+        }
+
+        appendTombstones(evicted);
+        scheduleCompactionIfNeeded();
+    }
+
+    /**
+     * Evicts entries from the index until the cache is within it's maximum size. Must be called
+     * while holding this object's lock.
+     *
+     * @param keep - Key of an entry which must not be evicted, or {@code null}.
+     * @return the keys which were evicted, which the caller must append tombstones for once it
+     *         has released this object's lock.
+     */
+    private ArrayList<String> trimToSize(String keep) {
+        final ArrayList<String> evicted = new ArrayList<String>();
+        while (mSize > mMaxSize) {
+            final String key = mEvictor.evict(keep);
+            if (null == key) {
+                break;
+            }
+
+            final Entry victim = mIndex.remove(key);
+            if (null != victim) {
+                markDead(victim);
+                evicted.add(key);
+            }
+        }
+        return evicted;
+    }
+
+    /**
+     * Reads the image at {@code position}.
+     *
+     * @return a buffer of the image, or {@code null} if it's segment has been compacted.
+     */
+    private ByteBuffer readImage(Position position) throws IOException {
+        final ByteBuffer image;
+
+        mSegmentLock.readLock().lock();
+        try {
+            final Segment segment = position.mSegment;
+            if (segment.mClosed) {
+                return null;
+            }
+
+            if (position.mImageLength > IoUtils.MAP_THRESHOLD) {
+                image = segment.mChannel.map(FileChannel.MapMode.READ_ONLY,
+                        position.mImageOffset, position.mImageLength);
+            } else {
+                image = ByteBuffer.allocate(position.mImageLength);
+                readFully(segment.mChannel, image, position.mImageOffset);
+                image.flip();
+            }
+        } finally {
+            mSegmentLock.readLock().unlock();
+        }
+
+        if (!position.mVerified) {
+            if (getCrc(image) != position.mImageCrc) {
+                throw new IOException("Pack file record is corrupt");
+            }
+            position.mVerified = true;
+        }
+        return image;
+    }
+
+    private static int getCrc(ByteBuffer buffer) {
+        final CRC32 crc = new CRC32();
+        if (buffer.hasArray()) {
+            crc.update(buffer.array(), buffer.arrayOffset() + buffer.position(),
+                    buffer.remaining());
+        } else {
+            final ByteBuffer source = buffer.duplicate();
+            final byte[] chunk = new byte[IoUtils.COPY_BUFFER_SIZE];
+            while (source.hasRemaining()) {
+                final int count = Math.min(chunk.length, source.remaining());
+                source.get(chunk, 0, count);
+                crc.update(chunk, 0, count);
+            }
+        }
+        return (int) crc.getValue();
+    }
+
+    private void scheduleCompactionIfNeeded() {
+        synchronized (this) {
+            if (mClosed || mCompactionScheduled || null == findCompactionVictim()) {
+                return;
+            }
+            mCompactionScheduled = true;
+        }
+        mCompactionExecutor.execute(mCompactionRunnable);
+    }
+
+    /**
+     * @return the oldest full segment which is mostly dead space, or {@code null} if there is
+     *         none. Must be called while holding this object's lock.
+     */
+    private Segment findCompactionVictim() {
+        for (Segment segment : mSegments.values()) {
+            if (segment != mActiveSegment
+                    && segment.mLiveBytes < segment.mSize * COMPACTION_LIVE_RATIO) {
+                return segment;
+            }
+        }
+        return null;
+    }
+
+    private final Runnable mCompactionRunnable = new Runnable() {
+        @Override
+        public void run() {
+            Process.setThreadPriority(Process.THREAD_PRIORITY_BACKGROUND);
+
+            while (true) {
+                final Segment victim;
+                synchronized (PackFileDiskCache.this) {
+                    victim = mClosed ? null : findCompactionVictim();
+                    if (null == victim) {
+                        mCompactionScheduled = false;
+                        return;
+                    }
+                }
+
+                try {
+                    compact(victim);
+                } catch (IOException e) {
+                    Log.e(Constants.LOG_TAG, "Error compacting " + victim.mFile, e);
+                    synchronized (PackFileDiskCache.this) {
+                        mCompactionScheduled = false;
+                    }
+                    return;
+                }
+            }
+        }
+    };
+
+    /**
+     * Copies the live records of {@code victim} to the active segment, and then deletes it.
+     */
+    private void compact(Segment victim) throws IOException {
+        final ArrayList<Entry> live = new ArrayList<Entry>();
+        final boolean oldest;
+        synchronized (this) {
+            for (Entry entry : mIndex.values()) {
+                if (entry.mPosition.mSegment == victim) {
+                    live.add(entry);
+                }
+            }
+            oldest = mSegments.firstKey() == victim.mId;
+        }
+
+        // Segments which copies were written to, which may be more than one if a new segment
+        // was started meanwhile
+        final HashSet<Segment> written = new HashSet<Segment>();
+
+        for (Entry entry : live) {
+            final Position position = entry.mPosition;
+            final ByteBuffer image;
+            try {
+                image = readImage(position);
+            } catch (IOException e) {
+                // Corrupt, so drop it
+                Log.w(Constants.LOG_TAG, "Dropping corrupt entry during compaction", e);
+                synchronized (mAppendLock) {
+                    if (isCurrent(entry, position)) {
+                        remove(entry.mKey);
+                    }
+                }
+                continue;
+            }
+
+            final byte[] bytes = new byte[image.remaining()];
+            image.get(bytes);
+
+            // Entries are only changed while holding mAppendLock, so it can't change in between
+            synchronized (mAppendLock) {
+                if (!isCurrent(entry, position)) {
+                    continue;
+                }
+                final Position moved = appendRecord(TYPE_ENTRY, entry.mKey, entry.mMetadata,
+                        bytes, bytes.length);
+                written.add(moved.mSegment);
+
+                synchronized (this) {
+                    // Moved in place, so that compaction doesn't count as a use of the entry
+                    position.mSegment.mLiveBytes -= position.mRecordSize;
+                    moved.mSegment.mLiveBytes += moved.mRecordSize;
+                    entry.mPosition = moved;
+                }
+            }
+        }
+
+        if (!oldest) {
+            // Tombstones may still hide records in older segments, so they need to be kept
+            for (String key : readTombstones(victim)) {
+                synchronized (mAppendLock) {
+                    final boolean exists;
+                    synchronized (this) {
+                        exists = mIndex.containsKey(key);
+                    }
+                    if (!exists) {
+                        written.add(appendRecord(TYPE_TOMBSTONE, key, "", null, 0).mSegment);
+                    }
+                }
+            }
+        }
+
+        // Make sure the copies are on disk before the originals are deleted
+        for (Segment segment : written) {
+            segment.mChannel.force(false);
+        }
+
+        synchronized (this) {
+            mSegments.remove(victim.mId);
+        }
+
+        mSegmentLock.writeLock().lock();
+        try {
+            victim.mClosed = true;
+            victim.close();
+        } finally {
+            mSegmentLock.writeLock().unlock();
+        }
+
+        if (!victim.mFile.delete()) {
+            Log.w(Constants.LOG_TAG, "Unable to delete " + victim.mFile);
+        }
+
+        if (Constants.DEBUG) {
+            Log.d(Constants.LOG_TAG, "Compacted " + victim.mFile + ", moving " + live.size()
+                    + " entries");
+        }
+    }
+
+    /**
+     * @return true if {@code entry} is still in the index, with it's image at {@code position}.
+     */
+    private synchronized boolean isCurrent(Entry entry, Position position) {
+        return !entry.mRemoved && entry.mPosition == position;
+    }
+
+    private static ArrayList<String> readTombstones(Segment segment) throws IOException {
+        final ArrayList<String> keys = new ArrayList<String>();
+        final ByteBuffer header = ByteBuffer.allocate(RECORD_HEADER_SIZE);
+        long offset = 0;
+
+        RecordHeader record;
+        while (null != (record = readRecordHeader(segment, offset, segment.mSize, header))) {
+            if (record.mType == TYPE_TOMBSTONE) {
+                keys.add(record.mKey);
+            }
+            offset += record.mRecordSize;
+        }
+        return keys;
+    }
+
+    private static void checkString(String value) throws IOException {
+        if (value.length() > MAX_STRING_LENGTH / 3) {
+            // UTF-8 can use up to 3 bytes per char
+            throw new IOException("String too long for pack file: " + value.length());
+        }
+    }
+
+    private static void readFully(FileChannel channel, ByteBuffer buffer, long position)
+            throws IOException {
+        while (buffer.hasRemaining()) {
+            final int read = channel.read(buffer, position);
+            if (read < 0) {
+                throw new EOFException();
+            }
+            position += read;
+        }
+    }
+
+    private static void writeFully(FileChannel channel, ByteBuffer buffer, long position)
+            throws IOException {
+        while (buffer.hasRemaining()) {
+            position += channel.write(buffer, position);
+        }
+    }
+
+    private final class PackSnapshot implements Snapshot {
+        private final Entry mEntry;
+
+        PackSnapshot(Entry entry) {
+            mEntry = entry;
+        }
+
+        @Override
+        public String getMetadata() {
+            return mEntry.mMetadata;
+        }
+
+        @Override
+        public InputStream openImage() throws IOException {
+            ByteBuffer image = readImage(mEntry.mPosition);
+            if (null == image) {
+                // Moved by compaction since, and it's new position is already set
+                image = readImage(mEntry.mPosition);
+            }
+            if (null == image) {
+                throw new IOException("Pack file entry was moved: " + mEntry.mKey);
+            }
+            return new ByteBufferInputStream(image);
+        }
+
+        @Override
+        public void close() {
+            // Nothing is held open
+        }
+
+        @Override
+        public void fillMetadata(String metadata) throws IOException {
+            checkString(metadata);
+            synchronized (mAppendLock) {
+                synchronized (PackFileDiskCache.this) {
+                    if (mIndex.get(mEntry.mKey) != mEntry || mEntry.mMetadata.length() > 0) {
+                        return;
+                    }
+                }
+                final ByteBuffer buffer = readImage(mEntry.mPosition);
+                if (null == buffer) {
+                    // Being compacted, so leave it for the next read
+                    return;
+                }
+                final byte[] image = new byte[buffer.remaining()];
+                buffer.get(image);
+                commitEdit(mEntry.mKey, image, image.length, metadata);
+            }
+        }
+    }
+
+    private final class PackEditor implements Editor {
+        private final String mKey;
+        private ByteArrayOutputStream mImage;
+        private String mMetadata;
+        private boolean mDone;
+
+        PackEditor(String key) {
+            mKey = key;
+        }
+
+        @Override
+        public OutputStream newImageOutputStream() {
+            mImage = new ByteArrayOutputStream(16 * 1024);
+            return mImage;
+        }
+
+        @Override
+        public void setMetadata(String metadata) throws IOException {
+            checkString(metadata);
+            mMetadata = metadata;
+        }
+
+        @Override
+        public void commit() throws IOException {
+            if (mDone) {
+                throw new IllegalStateException("Edit already finished");
+            }
+            mDone = true;
+
+            try {
+                if (null == mImage) {
+                    throw new IllegalStateException("No image was written for " + mKey);
+                }
+                final byte[] image = mImage.toByteArray();
+                final String metadata = null != mMetadata ? mMetadata : "";
+
+                synchronized (mAppendLock) {
+                    commitEdit(mKey, image, image.length, metadata);
+                }
+            } finally {
+                finishEdit();
+            }
+        }
+
+        @Override
+        public void abortUnlessCommitted() {
+            if (!mDone) {
+                mDone = true;
+                finishEdit();
+            }
+        }
+
+        private void finishEdit() {
+            synchronized (PackFileDiskCache.this) {
+                mEditing.remove(mKey);
+            }
+        }
+    }
+
+}
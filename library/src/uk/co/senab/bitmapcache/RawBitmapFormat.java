@@ -0,0 +1,167 @@
+/*******************************************************************************
+ * Copyright (c) 2013 Chris Banes.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ ******************************************************************************/
+package uk.co.senab.bitmapcache;
+
+import android.graphics.Bitmap;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.nio.ByteBuffer;
+
+/**
+ * Disk cache format which holds a Bitmap's uncompressed pixels. Loading it is just a copy into a
+ * Bitmap, which for small images is much quicker than decoding a JPEG or PNG. It is only used for
+ * entries which are under the threshold set with {@link
+ * BitmapLruCache.Builder#setDiskCacheRawPixelThreshold(int)}.
+ *
+ * <p> The format is a header of big-endian ints: magic, width, height, config and row bytes, which
+ * is followed by the pixels exactly as {@link Bitmap#copyPixelsToBuffer(java.nio.Buffer)} writes
+ * them. </p>
+ */
+final class RawBitmapFormat {
+
+    // 'BCRW'
+    static final int MAGIC = 0x42435257;
+
+    static final int HEADER_SIZE = 5 * 4;
+
+    static final String MIME_TYPE = "image/x-bitmapcache-raw";
+
+    private static final int CONFIG_ALPHA_8 = 1;
+    private static final int CONFIG_RGB_565 = 2;
+    private static final int CONFIG_ARGB_4444 = 3;
+    private static final int CONFIG_ARGB_8888 = 4;
+
+    private RawBitmapFormat() {
+    }
+
+    /**
+     * @return the config stored as {@code code}, or {@code null} if it is not recognised.
+     */
+    static Bitmap.Config getConfig(int code) {
+        switch (code) {
+            case CONFIG_ALPHA_8:
+                return Bitmap.Config.ALPHA_8;
+            case CONFIG_RGB_565:
+                return Bitmap.Config.RGB_565;
+            case CONFIG_ARGB_4444:
+                return Bitmap.Config.ARGB_4444;
+            case CONFIG_ARGB_8888:
+                return Bitmap.Config.ARGB_8888;
+        }
+        return null;
+    }
+
+    private static int getCode(Bitmap.Config config) {
+        switch (config) {
+            case ALPHA_8:
+                return CONFIG_ALPHA_8;
+            case RGB_565:
+                return CONFIG_RGB_565;
+            case ARGB_4444:
+                return CONFIG_ARGB_4444;
+            case ARGB_8888:
+            default:
+                return CONFIG_ARGB_8888;
+        }
+    }
+
+    /**
+     * @return true if {@code bitmap} can be written in this format.
+     */
+    static boolean canWrite(Bitmap bitmap) {
+        return null != bitmap.getConfig() && !bitmap.isRecycled();
+    }
+
+    /**
+     * Writes the pixels of {@code bitmap} to {@code os}, closing it afterwards.
+     */
+    static void write(Bitmap bitmap, OutputStream os) throws IOException {
+        final int pixelsSize = bitmap.getRowBytes() * bitmap.getHeight();
+        final ByteBuffer buffer = ByteBuffer.allocate(HEADER_SIZE + pixelsSize);
+        buffer.putInt(MAGIC);
+        buffer.putInt(bitmap.getWidth());
+        buffer.putInt(bitmap.getHeight());
+        buffer.putInt(getCode(bitmap.getConfig()));
+        buffer.putInt(bitmap.getRowBytes());
+        bitmap.copyPixelsToBuffer(buffer);
+        buffer.flip();
+
+        IoUtils.write(buffer, os);
+    }
+
+    /**
+     * @return the remaining contents of {@code is} as a buffer. Disk cache entries are already
+     *         mapped, so this does not need to copy them.
+     */
+    static ByteBuffer toBuffer(InputStream is) throws IOException {
+        if (is instanceof ByteBufferInputStream) {
+            return ((ByteBufferInputStream) is).remaining();
+        }
+        return ByteBuffer.wrap(IoUtils.readFully(is));
+    }
+
+    /**
+     * Reads the header from {@code buffer}, leaving it positioned at the start of the pixels.
+     *
+     * @return the header, or {@code null} if {@code buffer} is not valid.
+     */
+    static Header readHeader(ByteBuffer buffer) {
+        if (buffer.remaining() < HEADER_SIZE || buffer.getInt() != MAGIC) {
+            return null;
+        }
+
+        final Header header = new Header(buffer.getInt(), buffer.getInt(),
+                getConfig(buffer.getInt()), buffer.getInt());
+        if (null == header.mConfig || header.mWidth <= 0 || header.mHeight <= 0
+                || buffer.remaining() < (long) header.mRowBytes * header.mHeight) {
+            return null;
+        }
+        return header;
+    }
+
+    /**
+     * Copies the pixels from {@code buffer} into {@code bitmap}, which must be mutable.
+     *
+     * @return false if {@code bitmap} does not have the layout given in {@code header}.
+     */
+    static boolean copyPixels(Header header, ByteBuffer buffer, Bitmap bitmap) {
+        if (bitmap.getWidth() != header.mWidth || bitmap.getHeight() != header.mHeight
+                || bitmap.getConfig() != header.mConfig
+                || bitmap.getRowBytes() != header.mRowBytes) {
+            return false;
+        }
+
+        bitmap.copyPixelsFromBuffer(buffer);
+        return true;
+    }
+
+    static final class Header {
+        final int mWidth;
+        final int mHeight;
+        final Bitmap.Config mConfig;
+        final int mRowBytes;
+
+        Header(int width, int height, Bitmap.Config config, int rowBytes) {
+            mWidth = width;
+            mHeight = height;
+            mConfig = config;
+            mRowBytes = rowBytes;
+        }
+    }
+
+}
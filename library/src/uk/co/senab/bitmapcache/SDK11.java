@@ -19,6 +19,7 @@ package uk.co.senab.bitmapcache;
 import android.annotation.TargetApi;
 import android.graphics.Bitmap;
 import android.graphics.BitmapFactory;
+import android.os.AsyncTask;
 import android.os.Build;
 
 @TargetApi(Build.VERSION_CODES.HONEYCOMB)
@@ -28,4 +29,8 @@ class SDK11 {
         opts.inBitmap = inBitmap;
     }
 
+    static void executeOnThreadPool(AsyncTask<Void, ?, ?> task) {
+        task.executeOnExecutor(AsyncTask.THREAD_POOL_EXECUTOR);
+    }
+
 }
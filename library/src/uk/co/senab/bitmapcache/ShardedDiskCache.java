@@ -0,0 +1,315 @@
+/*******************************************************************************
+ * Copyright (c) 2013 Chris Banes.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ ******************************************************************************/
+package uk.co.senab.bitmapcache;
+
+import com.jakewharton.disklrucache.DiskLruCache;
+
+import android.util.Log;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+
+/**
+ * Spreads disk cache entries across a number of independent {@link DiskLruCache} instances, by the
+ * hash of their key. Each one has it's own journal and lock, so threads using different shards do
+ * not block each other. Each shard is given an equal share of the maximum size.
+ *
+ * <p> With a single shard, the cache is stored directly in the given directory, as it always has
+ * been. Otherwise shard {@code i} of {@code n} is stored in the sub-directory {@code
+ * shard-i-of-n}. Changing the number of shards starts a new, empty cache. </p>
+ *
+ * <p> Each shard has it's own {@link DiskCacheMetadataIndex} in it's directory, which holds the
+ * entries' metadata records. </p>
+ *
+ * <p> There is no key filter in front of the shards, as {@link DiskLruCache#get(String)} already
+ * answers a miss from it's in-memory entry table without any file I/O. </p>
+ */
+final class ShardedDiskCache implements DiskCacheStorage {
+
+    private static final String SHARD_DIRECTORY_PREFIX = "shard-";
+    private static final String JOURNAL_FILE = "journal";
+
+    /**
+     * Opens the cache in {@code directory}, creating it if needed. Any shards left from a
+     * different shard count are deleted.
+     */
+    static ShardedDiskCache open(File directory, int appVersion, int valueCount, long maxSize,
+            int shardCount) throws IOException {
+        if (shardCount <= 0) {
+            throw new IllegalArgumentException("shardCount must be positive");
+        }
+
+        // Left from a different storage engine
+        PackFileDiskCache.deleteSegments(directory);
+
+        final DiskLruCache[] shards = new DiskLruCache[shardCount];
+        final DiskCacheMetadataIndex[] indexes = new DiskCacheMetadataIndex[shardCount];
+
+        if (shardCount == 1) {
+            deleteStaleShards(directory, appVersion, valueCount, 0);
+            shards[0] = DiskLruCache.open(directory, appVersion, valueCount, maxSize);
+        } else {
+            if (new File(directory, JOURNAL_FILE).exists()) {
+                // An unsharded cache, which would otherwise be left behind
+                DiskLruCache.open(directory, appVersion, valueCount, maxSize).delete();
+            }
+            deleteStaleShards(directory, appVersion, valueCount, shardCount);
+            new File(directory, DiskCacheMetadataIndex.FILE_NAME).delete();
+
+            final long shardMaxSize = Math.max(1, maxSize / shardCount);
+            for (int i = 0; i < shardCount; i++) {
+                final File shardDirectory = getShardDirectory(directory, i, shardCount);
+                shards[i] = DiskLruCache.open(shardDirectory, appVersion, valueCount,
+                        shardMaxSize);
+            }
+        }
+
+        // Opened after DiskLruCache, which deletes the directory's contents if it is unusable
+        for (int i = 0; i < shardCount; i++) {
+            indexes[i] = DiskCacheMetadataIndex.open(shards[i].getDirectory());
+        }
+
+        return new ShardedDiskCache(shards, indexes);
+    }
+
+    /**
+     * Deletes any cache in {@code directory}, such as when another storage engine is being used
+     * there instead.
+     */
+    static void delete(File directory, int appVersion, int valueCount) throws IOException {
+        if (new File(directory, JOURNAL_FILE).exists()) {
+            DiskLruCache.open(directory, appVersion, valueCount, 1).delete();
+        }
+        new File(directory, DiskCacheMetadataIndex.FILE_NAME).delete();
+        deleteStaleShards(directory, appVersion, valueCount, 0);
+    }
+
+    private static File getShardDirectory(File directory, int index, int shardCount) {
+        return new File(directory, SHARD_DIRECTORY_PREFIX + index + "-of-" + shardCount);
+    }
+
+    /**
+     * Deletes any shard directories which were created with a different shard count, as their
+     * keys would now map to different shards.
+     */
+    private static void deleteStaleShards(File directory, int appVersion, int valueCount,
+            int shardCount) throws IOException {
+        final File[] files = directory.listFiles();
+        if (null == files) {
+            return;
+        }
+
+        for (File file : files) {
+            final String name = file.getName();
+            if (!file.isDirectory() || !name.startsWith(SHARD_DIRECTORY_PREFIX)) {
+                continue;
+            }
+
+            if (!name.endsWith("-of-" + shardCount)) {
+                if (Constants.DEBUG) {
+                    Log.d(Constants.LOG_TAG, "Deleting stale disk cache shard: " + file);
+                }
+                DiskLruCache.open(file, appVersion, valueCount, 1).delete();
+                file.delete();
+            }
+        }
+    }
+
+    private final DiskLruCache[] mShards;
+    private final DiskCacheMetadataIndex[] mIndexes;
+
+    private ShardedDiskCache(DiskLruCache[] shards, DiskCacheMetadataIndex[] indexes) {
+        mShards = shards;
+        mIndexes = indexes;
+    }
+
+    /**
+     * @return the index of the shard which holds {@code key}.
+     */
+    private int getShardIndex(String key) {
+        return mShards.length == 1 ? 0 : (key.hashCode() & 0x7FFFFFFF) % mShards.length;
+    }
+
+    /**
+     * @return the shard which holds {@code key}.
+     */
+    DiskLruCache getShard(String key) {
+        return mShards[getShardIndex(key)];
+    }
+
+    int getShardCount() {
+        return mShards.length;
+    }
+
+    @Override
+    public Snapshot get(String key) throws IOException {
+        final int shard = getShardIndex(key);
+        final DiskLruCache.Snapshot snapshot = mShards[shard].get(key);
+        return null != snapshot ? new ShardSnapshot(key, snapshot, mIndexes[shard]) : null;
+    }
+
+    @Override
+    public Editor edit(String key) throws IOException {
+        final int shard = getShardIndex(key);
+        final DiskLruCache.Editor editor = mShards[shard].edit(key);
+        return null != editor ? new ShardEditor(key, editor, mIndexes[shard]) : null;
+    }
+
+    @Override
+    public boolean remove(String key) throws IOException {
+        final int shard = getShardIndex(key);
+        mIndexes[shard].remove(key);
+        return mShards[shard].remove(key);
+    }
+
+    /**
+     * Flushes the journal and metadata index of every shard.
+     */
+    @Override
+    public void flush() throws IOException {
+        IOException failure = null;
+        for (int i = 0; i < mShards.length; i++) {
+            try {
+                mShards[i].flush();
+                mIndexes[i].flush(DiskCacheMetadata.INDEX_IMAGE);
+            } catch (IOException e) {
+                failure = e;
+            }
+        }
+        if (null != failure) {
+            throw failure;
+        }
+    }
+
+    /**
+     * Closes every shard and metadata index.
+     */
+    @Override
+    public void close() throws IOException {
+        IOException failure = null;
+        for (int i = 0; i < mShards.length; i++) {
+            try {
+                mIndexes[i].close();
+                mShards[i].close();
+            } catch (IOException e) {
+                failure = e;
+            }
+        }
+        if (null != failure) {
+            throw failure;
+        }
+    }
+
+    /**
+     * @return the number of bytes used by all of the shards.
+     */
+    @Override
+    public long size() {
+        long size = 0;
+        for (DiskLruCache shard : mShards) {
+            size += shard.size();
+        }
+        return size;
+    }
+
+    private static final class ShardSnapshot implements Snapshot {
+        private final String mKey;
+        private final DiskLruCache.Snapshot mSnapshot;
+        private final DiskCacheMetadataIndex mIndex;
+
+        ShardSnapshot(String key, DiskLruCache.Snapshot snapshot, DiskCacheMetadataIndex index) {
+            mKey = key;
+            mSnapshot = snapshot;
+            mIndex = index;
+        }
+
+        @Override
+        public String getMetadata() {
+            final String metadata = mIndex.get(mKey, getImageLength());
+            return null != metadata ? metadata : "";
+        }
+
+        @Override
+        public InputStream openImage() {
+            return mSnapshot.getInputStream(DiskCacheMetadata.INDEX_IMAGE);
+        }
+
+        @Override
+        public void close() {
+            mSnapshot.close();
+        }
+
+        @Override
+        public void fillMetadata(String metadata) throws IOException {
+            mIndex.fill(mKey, getImageLength(), metadata);
+        }
+
+        private long getImageLength() {
+            return mSnapshot.getLength(DiskCacheMetadata.INDEX_IMAGE);
+        }
+    }
+
+    private static final class ShardEditor implements Editor {
+        private final String mKey;
+        private final DiskLruCache.Editor mEditor;
+        private final DiskCacheMetadataIndex mIndex;
+
+        private IoUtils.CountingOutputStream mImage;
+        private String mMetadata;
+
+        ShardEditor(String key, DiskLruCache.Editor editor, DiskCacheMetadataIndex index) {
+            mKey = key;
+            mEditor = editor;
+            mIndex = index;
+        }
+
+        @Override
+        public OutputStream newImageOutputStream() throws IOException {
+            // Counted, as the index records the length of the image each record describes
+            mImage = new IoUtils.CountingOutputStream(
+                    mEditor.newOutputStream(DiskCacheMetadata.INDEX_IMAGE));
+            return mImage;
+        }
+
+        @Override
+        public void setMetadata(String metadata) {
+            mMetadata = metadata;
+        }
+
+        @Override
+        public void commit() throws IOException {
+            if (null == mImage) {
+                throw new IllegalStateException("No image was written for " + mKey);
+            }
+            mEditor.commit();
+
+            // Until this is done, readers see the new image with no record
+            if (null != mMetadata) {
+                mIndex.put(mKey, mImage.getCount(), mMetadata);
+            } else {
+                mIndex.remove(mKey);
+            }
+        }
+
+        @Override
+        public void abortUnlessCommitted() {
+            mEditor.abortUnlessCommitted();
+        }
+    }
+
+}
@@ -17,7 +17,6 @@
 package uk.co.senab.bitmapcache.samples;
 
 import android.content.Context;
-import android.graphics.BitmapFactory;
 import android.graphics.drawable.BitmapDrawable;
 import android.os.AsyncTask;
 import android.os.Build;
@@ -62,14 +61,18 @@ public class NetworkedCacheableImageView extends CacheableImageView {
         private final WeakReference<ImageView> mImageViewRef;
         private final OnImageLoadedListener mListener;
 
-        private final BitmapFactory.Options mDecodeOpts;
+        private final int mTargetSize;
 
-        ImageUrlAsyncTask(ImageView imageView, BitmapLruCache cache,
-                BitmapFactory.Options decodeOpts, OnImageLoadedListener listener) {
+        /**
+         * @param targetSize - Size which the image should be decoded to at least, or 0 to decode
+         *                   at the original size.
+         */
+        ImageUrlAsyncTask(ImageView imageView, BitmapLruCache cache, int targetSize,
+                OnImageLoadedListener listener) {
             mCache = cache;
             mImageViewRef = new WeakReference<ImageView>(imageView);
             mListener = listener;
-            mDecodeOpts = decodeOpts;
+            mTargetSize = targetSize;
         }
 
         @Override
@@ -83,7 +86,9 @@ public class NetworkedCacheableImageView extends CacheableImageView {
                 final String url = params[0];
 
                 // Now we're not on the main thread we can check all caches
-                CacheableBitmapDrawable result = mCache.get(url, mDecodeOpts);
+                CacheableBitmapDrawable result = mTargetSize > 0
+                        ? mCache.get(url, mTargetSize, mTargetSize)
+                        : mCache.get(url);
 
                 if (null == result) {
                     Log.d("ImageUrlAsyncTask", "Downloading: " + url);
@@ -93,7 +98,9 @@ public class NetworkedCacheableImageView extends CacheableImageView {
                     InputStream is = new BufferedInputStream(conn.getInputStream());
 
                     // Add to cache
-                    result = mCache.put(url, is, mDecodeOpts);
+                    result = mTargetSize > 0
+                            ? mCache.put(url, is, mTargetSize, mTargetSize)
+                            : mCache.put(url, is);
                 } else {
                     Log.d("ImageUrlAsyncTask", "Got from Cache: " + url);
                 }
@@ -144,10 +151,16 @@ public class NetworkedCacheableImageView extends CacheableImageView {
             mCurrentTask.cancel(true);
         }
 
+        // Thumbnails are decoded to the size of the grid item, rather than at full size
+        final int targetSize = fullSize ? 0
+                : getResources().getDimensionPixelSize(R.dimen.gridviewItemDimension);
+
         // Check to see if the memory cache already has the bitmap. We can
         // safely do
         // this on the main thread.
-        BitmapDrawable wrapper = mCache.getFromMemoryCache(url);
+        BitmapDrawable wrapper = targetSize > 0
+                ? mCache.getFromMemoryCache(url, targetSize, targetSize)
+                : mCache.getFromMemoryCache(url);
 
         if (null != wrapper) {
             // The cache has it, so just display it
@@ -157,14 +170,7 @@ public class NetworkedCacheableImageView extends CacheableImageView {
             // Memory Cache doesn't have the URL, do threaded request...
             setImageDrawable(null);
 
-            BitmapFactory.Options decodeOpts = null;
-
-            if (!fullSize) {
-                //decodeOpts = new BitmapFactory.Options();
-                //decodeOpts.inSampleSize = 2;
-            }
-
-            mCurrentTask = new ImageUrlAsyncTask(this, mCache, decodeOpts, listener);
+            mCurrentTask = new ImageUrlAsyncTask(this, mCache, targetSize, listener);
 
             try {
                 if (Build.VERSION.SDK_INT >= Build.VERSION_CODES.HONEYCOMB) {